@@ -29,17 +29,24 @@ import android.print.PrintAttributes;
 import android.print.PrintDocumentAdapter;
 import android.print.PrintDocumentInfo;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.print.PrintHelper;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import static android.print.PrintDocumentInfo.CONTENT_TYPE_DOCUMENT;
 
 /**
- * Document adapter to render and print PDF files.
+ * Document adapter to render and print PDF files. For files only the
+ * requested pages get written to the spool file.
  */
 class PrintAdapter extends PrintDocumentAdapter
 {
@@ -49,27 +56,58 @@ class PrintAdapter extends PrintDocumentAdapter
     // Max page count
     private final int pageCount;
 
-    // The input stream to render
-    private final @NonNull InputStream input;
+    // The file to pass through, if the content is backed by one
+    private final @Nullable File file;
+
+    // Reopens the content for every write pass
+    private final @Nullable StreamFactory factory;
+
+    // The stream opened upfront, consumed by the first write pass
+    private @Nullable InputStream input;
 
     // The callback to inform once the job is done
     private final @NonNull PrintHelper.OnPrintFinishCallback callback;
 
     /**
-     * Constructor
+     * Constructor for content backed by a file. The bytes get transferred
+     * from file descriptor to file descriptor without entering the heap.
      *
      * @param jobName   The name of the print job.
      * @param pageCount The max page count.
-     * @param input     The input stream to render.
+     * @param file      The file to print.
      * @param callback  The callback to inform once the job is done.
      */
     PrintAdapter (@NonNull String jobName, int pageCount,
-                  @NonNull InputStream input,
+                  @NonNull File file,
                   @NonNull PrintHelper.OnPrintFinishCallback callback)
     {
         this.jobName   = jobName;
         this.pageCount = pageCount;
+        this.file      = file;
+        this.factory   = null;
+        this.callback  = callback;
+    }
+
+    /**
+     * Constructor for content like assets, resources or base64 strings
+     * which can only be read as a stream.
+     *
+     * @param jobName   The name of the print job.
+     * @param pageCount The max page count.
+     * @param input     The already opened input stream to render first.
+     * @param factory   Reopens the content for subsequent write passes.
+     * @param callback  The callback to inform once the job is done.
+     */
+    PrintAdapter (@NonNull String jobName, int pageCount,
+                  @Nullable InputStream input,
+                  @NonNull StreamFactory factory,
+                  @NonNull PrintHelper.OnPrintFinishCallback callback)
+    {
+        this.jobName   = jobName;
+        this.pageCount = pageCount;
+        this.file      = null;
         this.input     = input;
+        this.factory   = factory;
         this.callback  = callback;
     }
 
@@ -104,28 +142,197 @@ class PrintAdapter extends PrintDocumentAdapter
         if (cancellationSignal.isCanceled())
             return;
 
-        OutputStream output = new FileOutputStream(dest.getFileDescriptor());
+        FileOutputStream output = new FileOutputStream(dest.getFileDescriptor());
+        PageRange[] written     = { PageRange.ALL_PAGES };
 
         try {
-            PrintIO.copy(input, output);
+            if (file != null) {
+                written = writeFile(file, range, output);
+            } else {
+                writeStream(output);
+            }
         } catch (IOException e) {
             callback.onWriteFailed(e.getMessage());
             return;
+        } finally {
+            PrintIO.close(output);
         }
 
-        callback.onWriteFinished(new PageRange[]{ PageRange.ALL_PAGES });
+        callback.onWriteFinished(written);
+    }
+
+    /**
+     * Writes the requested pages of the file. If all pages are requested
+     * or the document can't be split, the file gets transferred
+     * kernel-side into the output file.
+     *
+     * @param file   The file to print.
+     * @param ranges The requested pages.
+     * @param output The output to write into.
+     *
+     * @return The pages which have been written.
+     *
+     * @throws IOException If the file is not readable anymore.
+     */
+    @NonNull
+    private PageRange[] writeFile (@NonNull File file,
+                                   @NonNull PageRange[] ranges,
+                                   @NonNull FileOutputStream output)
+            throws IOException
+    {
+        FileInputStream stream = new FileInputStream(file);
+        FileChannel channel    = stream.getChannel();
+
+        try {
+            PrintPdfWriter writer = null;
+            int[] indices         = null;
+
+            try {
+                PrintPdf pdf = new PrintPdf(new PrintPdf.FileInput(channel));
+                indices      = toPageIndices(ranges, pdf.getPageCount());
+                writer       = indices != null ? new PrintPdfWriter(pdf, indices) : null;
+            } catch (IOException e) {
+                // unsupported or malformed document
+            }
+
+            if (writer == null)
+            {
+                PrintIO.copy(channel, output.getChannel());
+                return new PageRange[]{ PageRange.ALL_PAGES };
+            }
+
+            writer.writeTo(output.getChannel());
+
+            return toPageRanges(indices);
+        } finally {
+            PrintIO.close(stream);
+        }
     }
 
     /**
-     * Closes the input stream and invokes the callback.
+     * Converts the page ranges into a sorted list of page indices.
+     *
+     * @param ranges    The requested pages.
+     * @param pageCount The number of pages of the document.
+     *
+     * @return null if all pages are requested.
+     */
+    @Nullable
+    static int[] toPageIndices (@NonNull PageRange[] ranges, int pageCount)
+    {
+        boolean[] selected = new boolean[Math.max(pageCount, 0)];
+        int count          = 0;
+
+        for (PageRange range : ranges)
+        {
+            int start = Math.max(range.getStart(), 0);
+            int end   = Math.min(range.getEnd(), pageCount - 1);
+
+            for (int i = start; i <= end; i++)
+            {
+                if (!selected[i])
+                {
+                    selected[i] = true;
+                    count++;
+                }
+            }
+        }
+
+        if (count == 0 || count == pageCount)
+            return null;
+
+        int[] indices = new int[count];
+
+        for (int i = 0, j = 0; i < selected.length; i++)
+        {
+            if (selected[i])
+            {
+                indices[j++] = i;
+            }
+        }
+
+        return indices;
+    }
+
+    /**
+     * Converts the sorted list of page indices into page ranges.
+     *
+     * @param indices The zero-based page indices in ascending order.
+     */
+    @NonNull
+    static PageRange[] toPageRanges (@NonNull int[] indices)
+    {
+        List<PageRange> ranges = new ArrayList<>();
+        int start              = -1;
+        int prev               = -1;
+
+        for (int index : indices)
+        {
+            if (index != prev + 1 && start != -1)
+            {
+                ranges.add(new PageRange(start, prev));
+                start = -1;
+            }
+
+            if (start == -1)
+            {
+                start = index;
+            }
+
+            prev = index;
+        }
+
+        if (start != -1)
+        {
+            ranges.add(new PageRange(start, prev));
+        }
+
+        return ranges.toArray(new PageRange[ranges.size()]);
+    }
+
+    /**
+     * Streams the content through the heap into the output file.
+     *
+     * @param output The output to write into.
+     *
+     * @throws IOException If the content is not readable anymore.
+     */
+    @SuppressWarnings("ConstantConditions")
+    private void writeStream (@NonNull OutputStream output) throws IOException
+    {
+        InputStream stream = input != null ? input : factory.open();
+
+        input = null;
+
+        if (stream == null)
+            throw new IOException("Content is not accessible anymore");
+
+        try {
+            PrintIO.copy(stream, output);
+        } finally {
+            PrintIO.close(stream);
+        }
+    }
+
+    /**
+     * Closes the input stream if unused and invokes the callback.
      */
     @Override
     public void onFinish ()
     {
         super.onFinish();
 
-        PrintIO.close(input);
+        if (input != null)
+        {
+            PrintIO.close(input);
+            input = null;
+        }
 
         callback.onFinish();
     }
+
+    interface StreamFactory
+    {
+        @Nullable InputStream open();
+    }
 }
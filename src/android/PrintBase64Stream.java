@@ -0,0 +1,207 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Input stream which decodes base64 data chunk by chunk straight from a
+ * char sequence, without copying the encoded string or allocating the
+ * decoded content as a whole. White-space gets skipped, the URL-safe
+ * alphabet is accepted as well.
+ */
+class PrintBase64Stream extends InputStream
+{
+    // Maps the chars of the alphabet to their 6-bit values, -1 if invalid
+    private static final byte[] ALPHABET = new byte[128];
+
+    static
+    {
+        String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+        Arrays.fill(ALPHABET, (byte) -1);
+
+        for (int i = 0; i < chars.length(); i++)
+        {
+            ALPHABET[chars.charAt(i)] = (byte) i;
+        }
+
+        ALPHABET['-'] = 62;
+        ALPHABET['_'] = 63;
+    }
+
+    // The encoded data
+    private final @NonNull CharSequence data;
+
+    // Index after the last char to decode
+    private final int end;
+
+    // Index of the next char to decode
+    private int pos;
+
+    // Decoded bytes of the current quadruple not read yet
+    private final byte[] pending = new byte[3];
+    private int pendingPos;
+    private int pendingLen;
+
+    // Buffer for single byte reads
+    private final byte[] single = new byte[1];
+
+    // State saved by mark
+    private int markPos = -1;
+    private int markPendingPos;
+    private int markPendingLen;
+    private final byte[] markPending = new byte[3];
+
+    /**
+     * Constructor
+     *
+     * @param data  The encoded data.
+     * @param start The index of the first char to decode.
+     */
+    PrintBase64Stream (@NonNull CharSequence data, int start)
+    {
+        this(data, start, data.length());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param data  The encoded data.
+     * @param start The index of the first char to decode.
+     * @param end   The index after the last char to decode.
+     */
+    PrintBase64Stream (@NonNull CharSequence data, int start, int end)
+    {
+        this.data = data;
+        this.pos  = start;
+        this.end  = end;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        return read(single, 0, 1) == 1 ? single[0] & 0xFF : -1;
+    }
+
+    @Override
+    public int read (@NonNull byte[] b, int off, int len) throws IOException
+    {
+        int count = 0;
+
+        while (count < len && pendingPos < pendingLen)
+        {
+            b[off + count++] = pending[pendingPos++];
+        }
+
+        while (count < len)
+        {
+            int quad = 0;
+            int size = 0;
+
+            while (size < 4 && pos < end)
+            {
+                char c = data.charAt(pos++);
+
+                if (c == '=')
+                {
+                    pos = end;
+                    break;
+                }
+
+                if (c <= ' ')
+                    continue;
+
+                int value = c < 128 ? ALPHABET[c] : -1;
+
+                if (value == -1)
+                    throw new IOException("Invalid base64 char at " + (pos - 1));
+
+                quad = quad << 6 | value;
+                size++;
+            }
+
+            if (size == 0)
+                break;
+
+            if (size == 1)
+                throw new IOException("Truncated base64 data");
+
+            quad     <<= (4 - size) * 6;
+            pendingLen = size - 1;
+            pendingPos = 0;
+
+            pending[0] = (byte) (quad >> 16);
+            pending[1] = (byte) (quad >> 8);
+            pending[2] = (byte) quad;
+
+            while (count < len && pendingPos < pendingLen)
+            {
+                b[off + count++] = pending[pendingPos++];
+            }
+        }
+
+        return count == 0 && len > 0 ? -1 : count;
+    }
+
+    /**
+     * Returns an estimate of the remaining bytes.
+     */
+    @Override
+    public int available()
+    {
+        return (pendingLen - pendingPos) + (end - pos) / 4 * 3;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return true;
+    }
+
+    @Override
+    public void mark (int readLimit)
+    {
+        markPos        = pos;
+        markPendingPos = pendingPos;
+        markPendingLen = pendingLen;
+
+        System.arraycopy(pending, 0, markPending, 0, 3);
+    }
+
+    @Override
+    public void reset() throws IOException
+    {
+        if (markPos == -1)
+            throw new IOException("Stream not marked");
+
+        pos        = markPos;
+        pendingPos = markPendingPos;
+        pendingLen = markPendingLen;
+
+        System.arraycopy(markPending, 0, pending, 0, 3);
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.webkit.WebView;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.appplant.cordova.plugin.printer.PrintContent.ContentType;
+
+import static android.print.PrintDocumentInfo.PAGE_COUNT_UNKNOWN;
+
+/**
+ * Prints many documents with one call. The items get resolved by a few
+ * workers in parallel, consecutive items with the same settings get
+ * merged into as few print jobs as possible, which are then run by the
+ * scheduler. Markup gets merged into one HTML document, PDF documents and
+ * images into one composite document. The result of each item gets
+ * reported once its job is done.
+ */
+class PrintBatch
+{
+    // Max number of workers resolving the items
+    private static final int MAX_WORKERS = 4;
+
+    // The application context
+    private final @NonNull Context context;
+
+    // Provides the print methods
+    private final @NonNull PrintManager manager;
+
+    // Runs the print jobs
+    private final @NonNull PrintScheduler scheduler;
+
+    // Runs the workers
+    private final @NonNull Executor executor;
+
+    // The web view to print if an item has no content
+    private final @NonNull WebView view;
+
+    // The callback to inform about the result of each item
+    private final @NonNull OnItemFinishCallback callback;
+
+    // Number of items not reported yet
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * Constructor
+     *
+     * @param context   The application context.
+     * @param manager   Provides the print methods.
+     * @param scheduler Runs the print jobs.
+     * @param executor  Runs the workers.
+     * @param view      The web view to print if an item has no content.
+     * @param callback  The callback to inform about each item.
+     */
+    PrintBatch (@NonNull Context context, @NonNull PrintManager manager,
+                @NonNull PrintScheduler scheduler, @NonNull Executor executor,
+                @NonNull WebView view, @NonNull OnItemFinishCallback callback)
+    {
+        this.context   = context;
+        this.manager   = manager;
+        this.scheduler = scheduler;
+        this.executor  = executor;
+        this.view      = view;
+        this.callback  = callback;
+    }
+
+    /**
+     * Resolves the items and submits the merged print jobs. Blocks until
+     * all items have been resolved. Items which can't be resolved are
+     * reported as failed right away.
+     *
+     * @param items    List of contents or objects with content and settings.
+     * @param settings The settings shared by all items.
+     */
+    void print (@NonNull JSONArray items, @NonNull JSONObject settings)
+    {
+        if (items.length() == 0)
+        {
+            callback.onItemFinish(-1, false, "No items to print", true);
+            return;
+        }
+
+        Item[] resolved = resolve(items, settings);
+
+        pending.set(resolved.length);
+
+        for (int i = 0; i < resolved.length; i++)
+        {
+            if (resolved[i] == null)
+            {
+                callback.onItemFinish(i, false, "Invalid item", pending.decrementAndGet() == 0);
+            }
+        }
+
+        for (List<Item> group : merge(resolved))
+        {
+            submit(group);
+        }
+    }
+
+    /**
+     * Resolves the content type and settings of all items using a few
+     * workers in parallel. Items which can't be resolved are left null.
+     *
+     * @param items    List of contents or objects with content and settings.
+     * @param settings The settings shared by all items.
+     */
+    @NonNull
+    private Item[] resolve (@NonNull JSONArray items, @NonNull JSONObject settings)
+    {
+        Item[] resolved      = new Item[items.length()];
+        AtomicInteger next   = new AtomicInteger();
+        int workers          = Math.min(resolved.length, MAX_WORKERS);
+        CountDownLatch latch = new CountDownLatch(workers);
+
+        for (int i = 0; i < workers; i++)
+        {
+            executor.execute(() -> {
+                int index;
+
+                try {
+                    while ((index = next.getAndIncrement()) < resolved.length)
+                    {
+                        try {
+                            resolved[index] = new Item(index, items.opt(index), settings, context);
+                        } catch (RuntimeException e) {
+                            // reported as failed
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return resolved;
+    }
+
+    /**
+     * Groups consecutive items with the same settings which can be
+     * printed as one document. That are HTML and plain text items, or PDF
+     * documents and images. Other items are printed each on its own.
+     *
+     * @param items The resolved items.
+     */
+    @NonNull
+    private List<List<Item>> merge (@NonNull Item[] items)
+    {
+        List<List<Item>> groups = new ArrayList<>();
+        List<Item> group        = null;
+
+        for (Item item : items)
+        {
+            if (item == null)
+                continue;
+
+            if (group != null && item.canMergeWith(group.get(0)))
+            {
+                group.add(item);
+                continue;
+            }
+
+            group = new ArrayList<>();
+            group.add(item);
+            groups.add(group);
+        }
+
+        return groups;
+    }
+
+    /**
+     * Submits the group of items as one print job.
+     *
+     * @param group The items to print together.
+     */
+    private void submit (@NonNull List<Item> group)
+    {
+        Item first = group.get(0);
+        PrintTask.Body body;
+
+        if (group.size() == 1)
+        {
+            body = (PrintTask job) -> manager.print(first.source, first.settings, view, job);
+        }
+        else if (first.isMarkup())
+        {
+            String markup = toMarkup(group);
+            body = (PrintTask job) -> manager.print(markup, first.settings, view, job);
+        }
+        else
+        {
+            String[] contents   = new String[group.size()];
+            ContentType[] types = new ContentType[group.size()];
+
+            for (int i = 0; i < contents.length; i++)
+            {
+                contents[i] = group.get(i).content;
+                types[i]    = group.get(i).type;
+                group.get(i).source.close();
+            }
+
+            body = (PrintTask job) -> manager.printComposite(contents, types, first.settings, job);
+        }
+
+        PrintTask task = new PrintTask(body, (boolean completed) -> finish(group, completed, null));
+
+        if (!scheduler.submit(task))
+        {
+            finish(group, false, "Print queue is full");
+        }
+    }
+
+    /**
+     * Reports the result of each item of the group and closes the sources
+     * which have not been taken by the job.
+     *
+     * @param group     The items printed together.
+     * @param completed If the job has been completed.
+     * @param error     The reason why the job was not printed or null.
+     */
+    private void finish (@NonNull List<Item> group, boolean completed,
+                         @Nullable String error)
+    {
+        for (Item item : group)
+        {
+            item.source.close();
+            callback.onItemFinish(item.index, completed, error, pending.decrementAndGet() == 0);
+        }
+    }
+
+    /**
+     * Concatenates the items to one HTML document with a page break after
+     * each item.
+     *
+     * @param group The HTML and plain text items.
+     */
+    @NonNull
+    private static String toMarkup (@NonNull List<Item> group)
+    {
+        StringBuilder html = new StringBuilder();
+
+        for (Item item : group)
+        {
+            html.append("<div style=\"page-break-after:always\">");
+
+            if (item.type == ContentType.PLAIN)
+            {
+                html.append("<pre>");
+                escape(item.content, html);
+                html.append("</pre>");
+            }
+            else if (item.content != null)
+            {
+                html.append(item.content);
+            }
+
+            html.append("</div>");
+        }
+
+        return html.toString();
+    }
+
+    /**
+     * Appends the text with HTML special chars escaped.
+     *
+     * @param text The text to escape.
+     * @param html The markup to append to.
+     */
+    private static void escape (@Nullable String text, @NonNull StringBuilder html)
+    {
+        if (text == null)
+            return;
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            switch (c)
+            {
+                case '<':  html.append("&lt;");   break;
+                case '>':  html.append("&gt;");   break;
+                case '&':  html.append("&amp;");  break;
+                default:   html.append(c);
+            }
+        }
+    }
+
+    /**
+     * A single item of the batch.
+     */
+    private static final class Item
+    {
+        // The position within the batch
+        final int index;
+
+        // The content or file to print
+        final @Nullable String content;
+
+        // The settings of the item merged with the shared ones
+        final @NonNull JSONObject settings;
+
+        // Identifies items with equal settings
+        final @NonNull String key;
+
+        // The content resolved once, taken by the job of a single item
+        final @NonNull PrintSource source;
+
+        // The type of the content
+        final @NonNull ContentType type;
+
+        // The page count of PDF documents or PAGE_COUNT_UNKNOWN
+        final int pageCount;
+
+        /**
+         * Constructor
+         *
+         * @param index    The position within the batch.
+         * @param spec     The content or an object with content and settings.
+         * @param settings The settings shared by all items.
+         * @param context  The application context.
+         */
+        Item (int index, @Nullable Object spec, @NonNull JSONObject settings,
+              @NonNull Context context)
+        {
+            JSONObject own = null;
+            String content = null;
+
+            if (spec instanceof JSONObject)
+            {
+                own     = ((JSONObject) spec).optJSONObject("settings");
+                content = ((JSONObject) spec).optString("content", null);
+            }
+            else if (spec instanceof String)
+            {
+                content = (String) spec;
+            }
+
+            this.index     = index;
+            this.content   = content;
+            this.settings  = merge(settings, own);
+            this.key       = this.settings.toString();
+            this.source    = PrintSource.resolve(content, context);
+            this.type      = source.getType();
+            this.pageCount = type == ContentType.PDF
+                    ? PrintContent.getPageCount(content, context) : PAGE_COUNT_UNKNOWN;
+        }
+
+        /**
+         * If the item can be merged into one HTML document with others.
+         */
+        boolean isMarkup()
+        {
+            return (type == ContentType.HTML || type == ContentType.PLAIN)
+                    && content != null && !content.isEmpty();
+        }
+
+        /**
+         * If the item can be merged into one composite document with
+         * others. PDF documents need to have a known page count.
+         */
+        boolean isDocument()
+        {
+            return type == ContentType.IMAGE || (type == ContentType.PDF && pageCount > 0);
+        }
+
+        /**
+         * If the item can be printed as one document with the other one.
+         *
+         * @param other The item to merge with.
+         */
+        boolean canMergeWith (@NonNull Item other)
+        {
+            return key.equals(other.key) && ((isMarkup() && other.isMarkup())
+                    || (isDocument() && other.isDocument()));
+        }
+
+        /**
+         * Returns the shared settings overridden by the own ones.
+         *
+         * @param shared The settings shared by all items.
+         * @param own    The settings of the item.
+         */
+        @NonNull
+        private static JSONObject merge (@NonNull JSONObject shared,
+                                         @Nullable JSONObject own)
+        {
+            JSONObject settings = new JSONObject();
+
+            try {
+                for (Iterator<String> it = shared.keys(); it.hasNext();)
+                {
+                    String key = it.next();
+                    settings.put(key, shared.opt(key));
+                }
+
+                if (own != null)
+                {
+                    for (Iterator<String> it = own.keys(); it.hasNext();)
+                    {
+                        String key = it.next();
+                        settings.put(key, own.opt(key));
+                    }
+                }
+            } catch (JSONException e) {
+                // ignore
+            }
+
+            return settings;
+        }
+    }
+
+    interface OnItemFinishCallback
+    {
+        /**
+         * Invoked once the job of the item is done.
+         *
+         * @param index     The position of the item within the batch.
+         * @param completed If the job has been completed.
+         * @param error     The reason why the item was not printed or null.
+         * @param last      If it's the last item to report.
+         */
+        void onItemFinish (int index, boolean completed,
+                           @Nullable String error, boolean last);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.util.LruCache;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Size-bounded cache of decoded bitmaps, keyed by the fingerprint of the
+ * content and the target size and pixel format they were decoded for.
+ * Evicted bitmaps are not recycled as they might still be printed.
+ */
+class PrintBitmapCache extends LruCache<String, Bitmap>
+        implements ComponentCallbacks2
+{
+    // The shared instance
+    private static PrintBitmapCache instance;
+
+    /**
+     * Constructor
+     *
+     * @param maxSize The max size in bytes.
+     */
+    private PrintBitmapCache (int maxSize)
+    {
+        super(maxSize);
+    }
+
+    /**
+     * Returns the shared instance which takes up to 1/8 of the heap.
+     */
+    @NonNull
+    static synchronized PrintBitmapCache getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new PrintBitmapCache((int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE));
+        }
+
+        return instance;
+    }
+
+    @Override
+    protected int sizeOf (String key, Bitmap bitmap)
+    {
+        return bitmap.getAllocationByteCount();
+    }
+
+    /**
+     * Releases half of the cache if the app runs low on memory, and all
+     * of it once the app is in the background.
+     *
+     * @param level The context of the trim.
+     */
+    @Override
+    public void onTrimMemory (int level)
+    {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL)
+        {
+            evictAll();
+        }
+        else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW)
+        {
+            trimToSize(maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory()
+    {
+        evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged (Configuration config)
+    {
+        // nothing to do
+    }
+
+    /**
+     * Returns the hit and miss counters and the size of the cache.
+     */
+    @NonNull
+    synchronized JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+
+        try {
+            stats.put("hits", hitCount());
+            stats.put("misses", missCount());
+            stats.put("evictions", evictionCount());
+            stats.put("size", size());
+            stats.put("maxSize", maxSize());
+        } catch (JSONException e) {
+            // ignore
+        }
+
+        return stats;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps binary content passed as ArrayBuffer in memory while its job is
+ * running. Each content gets a buffer:// Uri, so that it can be resolved,
+ * opened and decoded like any other Uri without being encoded again.
+ */
+final class PrintBytes
+{
+    // The scheme of the Uris
+    private static final String SCHEME = "buffer://";
+
+    // Source of the ids
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    // The contents by their id
+    private static final ConcurrentHashMap<Integer, byte[]> CONTENTS = new ConcurrentHashMap<>();
+
+    private PrintBytes() {}
+
+    /**
+     * Keeps the content until released.
+     *
+     * @param bytes The content.
+     *
+     * @return The buffer:// Uri of the content.
+     */
+    @NonNull
+    static String put (@NonNull byte[] bytes)
+    {
+        int id = IDS.incrementAndGet();
+
+        CONTENTS.put(id, bytes);
+
+        return SCHEME + id;
+    }
+
+    /**
+     * Returns the content of the buffer:// Uri.
+     *
+     * @param path The buffer:// Uri.
+     *
+     * @return null if the content has been released already.
+     */
+    @Nullable
+    static byte[] get (@NonNull String path)
+    {
+        Integer id = parseId(path);
+
+        return id != null ? CONTENTS.get(id) : null;
+    }
+
+    /**
+     * Drops the content of the buffer:// Uri. Any other content is
+     * ignored, so that its safe to call for every job.
+     *
+     * @param path The content or Uri of the job.
+     */
+    static void release (@Nullable String path)
+    {
+        Integer id = path != null ? parseId(path) : null;
+
+        if (id != null)
+        {
+            CONTENTS.remove(id);
+        }
+    }
+
+    /**
+     * Returns the number of contents kept in memory and their total size
+     * in bytes.
+     */
+    @NonNull
+    static JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        long size        = 0;
+        int count        = 0;
+
+        for (byte[] bytes : CONTENTS.values())
+        {
+            size += bytes.length;
+            count++;
+        }
+
+        try {
+            stats.put("count", count);
+            stats.put("size", size);
+        } catch (JSONException e) {
+            // ignore
+        }
+
+        return stats;
+    }
+
+    /**
+     * Returns the id of the buffer:// Uri.
+     *
+     * @param path The Uri to parse.
+     *
+     * @return null if its not a buffer:// Uri.
+     */
+    @Nullable
+    private static Integer parseId (@NonNull String path)
+    {
+        if (!path.startsWith(SCHEME))
+            return null;
+
+        try {
+            return Integer.valueOf(path.substring(SCHEME.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
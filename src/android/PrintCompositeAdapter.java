@@ -0,0 +1,515 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.pdf.PdfDocument;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.print.PageRange;
+import android.print.PrintAttributes;
+import android.print.PrintDocumentAdapter;
+import android.print.PrintDocumentInfo;
+import android.print.pdf.PrintedPdfDocument;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.print.PrintHelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import de.appplant.cordova.plugin.printer.PrintContent.ContentType;
+
+import static android.print.PrintDocumentInfo.CONTENT_TYPE_DOCUMENT;
+
+/**
+ * Document adapter to print several PDF documents and images as one
+ * document. The pages of the documents and one page per image are
+ * numbered through, so that the requested page ranges cover the combined
+ * document. The requested pages get copied from the documents into the
+ * output file, the images get drawn into a temporary document first.
+ * That document keeps the pixels of all its images until written, so they
+ * share one pixel budget.
+ * The write passes run on the executor, as the framework invokes them on
+ * the UI thread.
+ */
+class PrintCompositeAdapter extends PrintDocumentAdapter
+{
+    // The application context
+    private final @NonNull Context context;
+
+    // Runs the write passes
+    private final @NonNull Executor executor;
+
+    // The name of the print job
+    private final @NonNull String jobName;
+
+    // The print job settings
+    private final @NonNull PrintOptions options;
+
+    // The documents and images to print
+    private final @NonNull String[] paths;
+
+    // The type of each part, either PDF or IMAGE
+    private final @NonNull ContentType[] types;
+
+    // The index of the first page of each part within the combined document
+    private final @NonNull int[] offsets;
+
+    // The total page count or PAGE_COUNT_UNKNOWN
+    private final int pageCount;
+
+    // The callback to inform once the job is done
+    private final @NonNull PrintHelper.OnPrintFinishCallback callback;
+
+    // The attributes of the last layout pass
+    private @Nullable PrintAttributes attributes;
+
+    /**
+     * Constructor. Reads the page count of each document, so better not
+     * call it on the UI thread.
+     *
+     * @param context  The application context.
+     * @param executor Runs the write passes.
+     * @param options  The print job settings.
+     * @param paths    The documents and images to print.
+     * @param types    The type of each part, either PDF or IMAGE.
+     * @param callback The callback to inform once the job is done.
+     */
+    PrintCompositeAdapter (@NonNull Context context,
+                           @NonNull Executor executor,
+                           @NonNull PrintOptions options,
+                           @NonNull String[] paths,
+                           @NonNull ContentType[] types,
+                           @NonNull PrintHelper.OnPrintFinishCallback callback)
+    {
+        int count = 0;
+
+        this.context  = context;
+        this.executor = executor;
+        this.jobName  = options.getJobName();
+        this.options  = options;
+        this.paths    = paths;
+        this.types    = types;
+        this.offsets  = new int[paths.length];
+        this.callback = callback;
+
+        for (int i = 0; i < paths.length && count >= 0; i++)
+        {
+            int pages = 1;
+
+            if (types[i] == ContentType.PDF)
+            {
+                pages = PrintContent.getPageCount(paths[i], context);
+            }
+
+            offsets[i] = count;
+            count      = pages > 0 ? count + pages : PrintDocumentInfo.PAGE_COUNT_UNKNOWN;
+        }
+
+        this.pageCount = count;
+    }
+
+    @Override
+    public void onLayout (PrintAttributes oldAttributes,
+                          PrintAttributes newAttributes,
+                          CancellationSignal cancellationSignal,
+                          LayoutResultCallback callback,
+                          Bundle bundle)
+    {
+        PrintDocumentInfo pdi;
+
+        if (cancellationSignal.isCanceled())
+            return;
+
+        if (pageCount < 0)
+        {
+            callback.onLayoutFailed("Unsupported document");
+            return;
+        }
+
+        attributes = newAttributes;
+
+        pdi = new PrintDocumentInfo.Builder(jobName)
+                .setContentType(CONTENT_TYPE_DOCUMENT)
+                .setPageCount(pageCount)
+                .build();
+
+        boolean changed = !newAttributes.equals(oldAttributes);
+
+        callback.onLayoutFinished(pdi, changed);
+    }
+
+    @Override
+    public void onWrite (PageRange[] range,
+                         ParcelFileDescriptor dest,
+                         CancellationSignal cancellationSignal,
+                         WriteResultCallback callback)
+    {
+        PrintAttributes attrs = attributes;
+
+        if (cancellationSignal.isCanceled() || attrs == null)
+            return;
+
+        executor.execute(() -> write(range, attrs, dest, cancellationSignal, callback));
+    }
+
+    /**
+     * Draws the selected images and copies the selected pages into the
+     * output file. Runs on the executor.
+     *
+     * @param range    The requested pages.
+     * @param attrs    The attributes of the layout pass.
+     * @param dest     The output file.
+     * @param signal   To check if the job has been canceled.
+     * @param callback The callback to inform once the pages are written.
+     */
+    private void write (@NonNull PageRange[] range,
+                        @NonNull PrintAttributes attrs,
+                        @NonNull ParcelFileDescriptor dest,
+                        @NonNull CancellationSignal signal,
+                        @NonNull WriteResultCallback callback)
+    {
+        int[] selected              = getSelectedPages(range);
+        List<PrintPdf.Input> inputs = new ArrayList<>();
+        FileOutputStream output     = new FileOutputStream(dest.getFileDescriptor());
+        File images                 = null;
+
+        try {
+            images = drawImages(selected, attrs, signal);
+
+            if (signal.isCanceled())
+            {
+                callback.onWriteCancelled();
+                return;
+            }
+
+            writePages(selected, images, inputs, output);
+        } catch (IOException e) {
+            callback.onWriteFailed(e.getMessage());
+            return;
+        } finally {
+            for (PrintPdf.Input input : inputs)
+            {
+                PrintIO.close(input);
+            }
+
+            if (images != null)
+            {
+                //noinspection ResultOfMethodCallIgnored
+                images.delete();
+            }
+
+            PrintIO.close(output);
+        }
+
+        callback.onWriteFinished(PrintAdapter.toPageRanges(selected));
+    }
+
+    /**
+     * Invokes the callback.
+     */
+    @Override
+    public void onFinish ()
+    {
+        super.onFinish();
+        callback.onFinish();
+    }
+
+    /**
+     * Converts the requested page ranges into a sorted list of page
+     * indices of the combined document.
+     *
+     * @param ranges The requested pages.
+     */
+    @NonNull
+    private int[] getSelectedPages (@NonNull PageRange[] ranges)
+    {
+        int[] indices = PrintAdapter.toPageIndices(ranges, pageCount);
+
+        if (indices != null)
+            return indices;
+
+        indices = new int[pageCount];
+
+        for (int i = 0; i < pageCount; i++)
+        {
+            indices[i] = i;
+        }
+
+        return indices;
+    }
+
+    /**
+     * Returns the index of the part the page of the combined document
+     * belongs to.
+     *
+     * @param page The page index within the combined document.
+     */
+    private int getPart (int page)
+    {
+        int part = Arrays.binarySearch(offsets, page);
+
+        return part >= 0 ? part : -part - 2;
+    }
+
+    /**
+     * Draws each selected image onto its own page of a temporary document.
+     * The images get decoded one after another, sampled down to the paper
+     * size and printer resolution, and further down to an equal share of
+     * the pixel budget, as the pages keep the pixels of every drawn image
+     * until the document gets written.
+     *
+     * @param selected The selected pages of the combined document.
+     * @param attrs    The attributes to lay out the pages for.
+     * @param signal   To check if the job has been canceled.
+     *
+     * @return The temporary document or null if no image is selected or
+     *         the job has been canceled.
+     *
+     * @throws IOException If an image can't be decoded.
+     */
+    @Nullable
+    private File drawImages (@NonNull int[] selected,
+                             @NonNull PrintAttributes attrs,
+                             @NonNull CancellationSignal signal)
+            throws IOException
+    {
+        PrintedPdfDocument doc = null;
+        File file              = null;
+        int pageNum            = 0;
+        int imageCount         = 0;
+
+        for (int page : selected)
+        {
+            if (types[getPart(page)] == ContentType.IMAGE) imageCount++;
+        }
+
+        long budget = PrintContent.getPixelBudget() / Math.max(imageCount, 1);
+
+        try {
+            for (int page : selected)
+            {
+                int part = getPart(page);
+
+                if (types[part] != ContentType.IMAGE)
+                    continue;
+
+                if (signal.isCanceled())
+                    return null;
+
+                BitmapFactory.Options opts = PrintContent.decodeBounds(paths[part], options, context);
+                Bitmap bitmap              = null;
+
+                if (opts != null)
+                {
+                    opts.inSampleSize = PrintContent.fitSampleSize(opts.outWidth, opts.outHeight,
+                            opts.inSampleSize, opts.inPreferredConfig, budget);
+                    bitmap            = PrintContent.decode(paths[part], opts, context);
+                }
+
+                if (bitmap == null)
+                    throw new IOException("Can't decode " + paths[part]);
+
+                if (doc == null)
+                {
+                    doc = new PrintedPdfDocument(context, attrs);
+                }
+
+                PdfDocument.Page pdfPage = doc.startPage(pageNum++);
+
+                drawImage(bitmap, pdfPage.getCanvas(), doc.getPageContentRect());
+                doc.finishPage(pdfPage);
+                bitmap.recycle();
+            }
+
+            if (doc == null)
+                return null;
+
+            file = createTempFile();
+
+            FileOutputStream stream = new FileOutputStream(file);
+
+            try {
+                doc.writeTo(stream);
+            } finally {
+                PrintIO.close(stream);
+            }
+
+            return file;
+        } catch (IOException e) {
+            if (file != null)
+            {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+
+            throw e;
+        } finally {
+            if (doc != null) doc.close();
+        }
+    }
+
+    /**
+     * Draws the image centered into the content area of the page. The
+     * image either fits into or fills the content area.
+     *
+     * @param bitmap  The decoded image.
+     * @param canvas  The canvas of the page.
+     * @param content The content area of the page in points.
+     */
+    private void drawImage (@NonNull Bitmap bitmap, @NonNull Canvas canvas,
+                            @NonNull Rect content)
+    {
+        int width    = bitmap.getWidth();
+        int height   = bitmap.getHeight();
+        float scaleX = (float) content.width() / width;
+        float scaleY = (float) content.height() / height;
+        float scale  = options.isAutoFit() ? Math.min(scaleX, scaleY) : Math.max(scaleX, scaleY);
+        float left   = content.left + (content.width() - width * scale) / 2;
+        float top    = content.top + (content.height() - height * scale) / 2;
+
+        canvas.save();
+        canvas.clipRect(content);
+        canvas.drawBitmap(bitmap, null, new RectF(left, top, left + width * scale, top + height * scale),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        canvas.restore();
+    }
+
+    /**
+     * Copies the selected pages into the output file. Consecutive pages
+     * of the same part get added in one go, so that shared resources
+     * are looked up only once.
+     *
+     * @param selected The selected pages of the combined document.
+     * @param images   The temporary document with the drawn images.
+     * @param inputs   The list to add the opened inputs to.
+     * @param output   The output to write into.
+     *
+     * @throws IOException If a document is not readable anymore.
+     */
+    private void writePages (@NonNull int[] selected, @Nullable File images,
+                             @NonNull List<PrintPdf.Input> inputs,
+                             @NonNull FileOutputStream output)
+            throws IOException
+    {
+        PrintPdfWriter writer = new PrintPdfWriter();
+        PrintPdf[] documents  = new PrintPdf[paths.length];
+        PrintPdf imageDoc     = null;
+        int imageNum          = 0;
+
+        if (images != null)
+        {
+            PrintPdf.Input input = new PrintPdf.FileInput(new FileInputStream(images).getChannel());
+
+            inputs.add(input);
+            imageDoc = new PrintPdf(input);
+        }
+
+        for (int i = 0; i < selected.length;)
+        {
+            int part = getPart(selected[i]);
+            int end  = i + 1;
+
+            while (end < selected.length && getPart(selected[end]) == part)
+            {
+                end++;
+            }
+
+            int[] indices = new int[end - i];
+
+            for (int j = 0; j < indices.length; j++)
+            {
+                indices[j] = types[part] == ContentType.IMAGE
+                        ? imageNum++ : selected[i + j] - offsets[part];
+            }
+
+            if (types[part] == ContentType.IMAGE)
+            {
+                writer.add(imageDoc, indices);
+            }
+            else
+            {
+                if (documents[part] == null)
+                {
+                    documents[part] = openDocument(paths[part], inputs);
+                }
+
+                writer.add(documents[part], indices);
+            }
+
+            i = end;
+        }
+
+        writer.writeTo(output.getChannel());
+    }
+
+    /**
+     * Opens the PDF document for random access.
+     *
+     * @param path   The path to the document.
+     * @param inputs The list to add the opened input to.
+     *
+     * @throws IOException If the document is not accessible or malformed.
+     */
+    @NonNull
+    private PrintPdf openDocument (@NonNull String path,
+                                   @NonNull List<PrintPdf.Input> inputs)
+            throws IOException
+    {
+        PrintPdf.Input input = PrintContent.openInput(path, context);
+
+        if (input == null)
+            throw new IOException("Content is not accessible anymore");
+
+        inputs.add(input);
+
+        return new PrintPdf(input);
+    }
+
+    /**
+     * Creates a temporary file within the cache directory.
+     */
+    @NonNull
+    private File createTempFile() throws IOException
+    {
+        File dir = new File(context.getCacheDir(), "printer");
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create " + dir);
+
+        return File.createTempFile("images", ".pdf", dir);
+    }
+}
@@ -26,20 +26,37 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URLConnection;
+import java.util.Locale;
+
+import static android.print.PrintDocumentInfo.PAGE_COUNT_UNKNOWN;
 
 /**
  * Knows how to convert a resource URL into an io stream.
  */
 class PrintContent
 {
+    // Tag used for logging
+    private static final String TAG = "Printer";
+
     // List of supported content types
     enum ContentType { PLAIN, HTML, IMAGE, PDF, UNSUPPORTED }
 
+    // Page count of already inspected PDF documents by their fingerprint
+    private static final LruCache<String, Integer> PAGE_COUNTS = new LruCache<>(32);
+
+    // The base64 content hashed last, as a job looks it up several times
+    private static volatile @Nullable Fingerprint lastBase64;
+
+    // The shared instance
+    private static PrintContent instance;
+
     // Helper class to deal with io operations
     private final @NonNull PrintIO io;
 
@@ -53,75 +70,231 @@ class PrintContent
     }
 
     /**
-     * Returns the content type for the file referenced by its uri.
-     *
-     * @param path The path to check.
+     * Returns the shared instance bound to the application context. The
+     * instance holds no per-call state, so all threads can share it.
      *
-     * @return The content type even the file does not exist.
+     * @param context Any context of the app.
      */
     @NonNull
-    static ContentType getContentType (@Nullable String path,
-                                       @NonNull Context context)
+    private static synchronized PrintContent getInstance (@NonNull Context context)
+    {
+        if (instance == null)
+        {
+            Context app = context.getApplicationContext();
+
+            instance = new PrintContent(app != null ? app : context);
+        }
+
+        return instance;
+    }
+
+    /**
+     * Looks up the ids of the res:// resources upfront, so that printing
+     * them later does not need to go through the reflective lookup.
+     *
+     * @param paths   The res:// paths of the resources.
+     * @param context The application context.
+     */
+    static void preloadResources (@NonNull String[] paths,
+                                  @NonNull Context context)
     {
-        return new PrintContent(context).getContentType(path);
+        getInstance(context).io.preloadResIds(paths);
     }
 
     /**
-     * Returns the content type for the file referenced by its uri.
+     * Returns the file behind a file:/// Uri.
      *
-     * @param path The path to check.
+     * @param path    The file path to resolve.
+     * @param context The application context.
      *
-     * @return The content type even the file does not exist.
+     * @return The file or null if the content is not backed by a file.
      */
-    @NonNull
-    private ContentType getContentType (@Nullable String path)
+    @Nullable
+    static File getFile (@NonNull String path, @NonNull Context context)
     {
-        ContentType type = ContentType.PLAIN;
+        return getInstance(context).getFile(path);
+    }
 
-        if (path == null || path.isEmpty() || path.charAt(0) == '<')
+    /**
+     * Returns the file behind a file:/// Uri.
+     *
+     * @param path The file path to resolve.
+     *
+     * @return The file or null if the content is not backed by a file.
+     */
+    @Nullable
+    private File getFile (@NonNull String path)
+    {
+        return path.startsWith("file:///") ? io.getFile(path) : null;
+    }
+
+    /**
+     * Returns the page count of a PDF document given as a file://,
+     * res:// or base64:// Uri. Only the trailer, the cross-reference
+     * table and the root of the page tree are read.
+     *
+     * @param path    The path to the document.
+     * @param context The application context.
+     *
+     * @return The page count or PAGE_COUNT_UNKNOWN.
+     */
+    static int getPageCount (@NonNull String path, @NonNull Context context)
+    {
+        return getInstance(context).getPageCount(path);
+    }
+
+    /**
+     * Returns the page count of a PDF document given as a file://,
+     * res:// or base64:// Uri. The result is cached by the fingerprint
+     * of the content.
+     *
+     * @param path The path to the document.
+     *
+     * @return The page count or PAGE_COUNT_UNKNOWN.
+     */
+    private int getPageCount (@NonNull String path)
+    {
+        String key    = getFingerprint(path);
+        Integer count = key != null ? PAGE_COUNTS.get(key) : null;
+
+        if (count != null)
+            return count;
+
+        PrintPdf.Input input = openInput(path);
+
+        count = PAGE_COUNT_UNKNOWN;
+
+        if (input != null)
         {
-            type = ContentType.HTML;
+            try {
+                count = Math.max(new PrintPdf(input).getPageCount(), PAGE_COUNT_UNKNOWN);
+            } catch (IOException e) {
+                // unsupported or malformed document
+            } finally {
+                PrintIO.close(input);
+            }
         }
-        else if (path.matches("^[a-z0-9]+://.+"))
+
+        if (count == 0)
         {
-            String mime;
+            count = PAGE_COUNT_UNKNOWN;
+        }
 
-            if (path.startsWith("base64:"))
-            {
-                try
-                {
-                    mime = URLConnection.guessContentTypeFromStream(io.openBase64(path));
-                }
-                catch (IOException e)
-                {
-                    return ContentType.UNSUPPORTED;
-                }
-            }
-            else
-            {
-                mime = URLConnection.guessContentTypeFromName(path);
-            }
+        if (key != null)
+        {
+            PAGE_COUNTS.put(key, count);
+        }
 
-            switch (mime)
-            {
-                case "image/bmp":
-                case "image/png":
-                case "image/jpeg":
-                case "image/jpeg2000":
-                case "image/jp2":
-                case "image/gif":
-                case "image/x-icon":
-                case "image/vnd.microsoft.icon":
-                case "image/heif":
-                    return ContentType.IMAGE;
-                case "application/pdf":
-                    return ContentType.PDF;
-                default:
-                    return ContentType.UNSUPPORTED;
-            }
+        return count;
+    }
+
+    /**
+     * Returns the key for the decoded image within the bitmap cache.
+     *
+     * @param path    The path to the image.
+     * @param options The print job settings.
+     * @param context The application context.
+     *
+     * @return null if the content does not exist.
+     */
+    @Nullable
+    static String getBitmapKey (@NonNull String path,
+                                @NonNull PrintOptions options,
+                                @NonNull Context context)
+    {
+        String fingerprint = getInstance(context).getFingerprint(path);
+        int[] size         = options.getPixelSize();
+
+        if (fingerprint == null)
+            return null;
+
+        return fingerprint + "@" + size[0] + "x" + size[1] + ":" + options.getBitmapConfig();
+    }
+
+    /**
+     * Returns a key which changes whenever the referenced content changes.
+     *
+     * @param path The path to the content.
+     *
+     * @return null if the content does not exist or is not worth caching,
+     *         like buffer:// content which is never passed twice.
+     */
+    @Nullable
+    private String getFingerprint (@NonNull String path)
+    {
+        if (path.startsWith("file:///"))
+        {
+            File file = io.getFile(path);
+
+            return file != null ? path + "@" + file.lastModified() + ":" + file.length() : null;
+        }
+        else if (path.startsWith("base64:"))
+        {
+            Fingerprint last = lastBase64;
+
+            if (last != null && last.path == path)
+                return last.key;
+
+            last       = new Fingerprint(path, "base64:" + PrintPdfCache.sha256(path));
+            lastBase64 = last;
+
+            return last.key;
+        }
+        else if (path.startsWith("buffer:"))
+        {
+            return null;
+        }
+
+        return path;
+    }
+
+    /**
+     * Opens a file://, res:// or base64:// Uri for random access.
+     *
+     * @param path    The path to the content.
+     * @param context The application context.
+     *
+     * @return The content or null if its not accessible that way.
+     */
+    @Nullable
+    static PrintPdf.Input openInput (@NonNull String path,
+                                     @NonNull Context context)
+    {
+        return getInstance(context).openInput(path);
+    }
+
+    /**
+     * Opens a file://, res:// or base64:// Uri for random access.
+     *
+     * @param path The path to the content.
+     *
+     * @return The content or null if its not accessible that way.
+     */
+    @Nullable
+    private PrintPdf.Input openInput (@NonNull String path)
+    {
+        if (path.startsWith("res:"))
+        {
+            return io.openResourceInput(path);
+        }
+        else if (path.startsWith("file:///"))
+        {
+            return io.openFileInput(path);
+        }
+        else if (path.startsWith("file://"))
+        {
+            return io.openAssetInput(path);
+        }
+        else if (path.startsWith("base64:"))
+        {
+            return io.openBase64Input(path);
+        }
+        else if (path.startsWith("buffer:"))
+        {
+            return io.openBytesInput(path);
         }
 
-        return type;
+        return null;
     }
 
     /**
@@ -136,7 +309,7 @@ class PrintContent
     static BufferedInputStream open (@NonNull String path,
                                      @NonNull Context context)
     {
-        return new PrintContent(context).open(path);
+        return getInstance(context).open(path);
     }
 
     /**
@@ -167,56 +340,294 @@ class PrintContent
         {
             stream = io.openBase64(path);
         }
+        else if (path.startsWith("buffer:"))
+        {
+            stream = io.openBytes(path);
+        }
 
         return stream != null ? new BufferedInputStream(stream) : null;
     }
 
     /**
-     * Decodes a file://, res:// or base64:// Uri to bitmap.
+     * Decodes a file://, res:// or base64:// Uri to bitmap. The image gets
+     * subsampled to the resolution needed to cover the paper.
      *
      * @param path    The file path to decode.
+     * @param options The print job settings.
      * @param context The application context.
      *
      * @return A bitmap or null if the path is not valid
      */
     @Nullable
-    static Bitmap decode (@NonNull String path, @NonNull Context context)
+    static Bitmap decode (@NonNull String path, @NonNull PrintOptions options,
+                          @NonNull Context context)
+    {
+        return getInstance(context).decode(path, options);
+    }
+
+    /**
+     * Decodes a file://, res:// or base64:// Uri to bitmap. First only the
+     * bounds get decoded to find out the sample size and pixel format
+     * which are enough for the paper size and printer resolution.
+     *
+     * @param path    The file path to decode.
+     * @param options The print job settings.
+     *
+     * @return A bitmap or null if the path is not valid
+     */
+    @Nullable
+    private Bitmap decode (@NonNull String path, @NonNull PrintOptions options)
+    {
+        BitmapFactory.Options opts = decodeBounds(path, options);
+
+        return opts != null ? decodeSampled(path, opts) : null;
+    }
+
+    /**
+     * Decodes a file://, res:// or base64:// Uri to bitmap using the
+     * options prepared by decodeBounds.
+     *
+     * @param path    The file path to decode.
+     * @param opts    The prepared decode options.
+     * @param context The application context.
+     *
+     * @return A bitmap or null if the path is not valid
+     */
+    @Nullable
+    static Bitmap decode (@NonNull String path,
+                          @NonNull BitmapFactory.Options opts,
+                          @NonNull Context context)
+    {
+        return getInstance(context).decodeSampled(path, opts);
+    }
+
+    /**
+     * Decodes a file://, res:// or base64:// Uri to bitmap using the
+     * options prepared by decodeBounds and logs the allocated memory.
+     *
+     * @param path The file path to decode.
+     * @param opts The prepared decode options.
+     *
+     * @return A bitmap or null if the path is not valid
+     */
+    @Nullable
+    private Bitmap decodeSampled (@NonNull String path,
+                                  @NonNull BitmapFactory.Options opts)
+    {
+        Bitmap bitmap = decode(path, opts);
+
+        if (bitmap != null)
+        {
+            Log.d(TAG, String.format(Locale.US,
+                    "Decoded %dx%d image at 1/%d into %d KB instead of %d KB",
+                    opts.outWidth * opts.inSampleSize, opts.outHeight * opts.inSampleSize,
+                    opts.inSampleSize, bitmap.getAllocationByteCount() / 1024,
+                    (long) opts.outWidth * opts.outHeight * opts.inSampleSize * opts.inSampleSize * 4 / 1024));
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Decodes the bounds of a file://, res:// or base64:// image and
+     * prepares the options to decode it for the paper size and printer
+     * resolution.
+     *
+     * @param path    The file path to decode.
+     * @param options The print job settings.
+     * @param context The application context.
+     *
+     * @return The decode options or null if the path is not valid.
+     */
+    @Nullable
+    static BitmapFactory.Options decodeBounds (@NonNull String path,
+                                               @NonNull PrintOptions options,
+                                               @NonNull Context context)
+    {
+        return getInstance(context).decodeBounds(path, options);
+    }
+
+    /**
+     * Decodes the bounds of a file://, res:// or base64:// image and
+     * prepares the options to decode it for the paper size and printer
+     * resolution.
+     *
+     * @param path    The file path to decode.
+     * @param options The print job settings.
+     *
+     * @return The decode options or null if the path is not valid.
+     */
+    @Nullable
+    private BitmapFactory.Options decodeBounds (@NonNull String path,
+                                                @NonNull PrintOptions options)
     {
-        return new PrintContent(context).decode(path);
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+
+        opts.inJustDecodeBounds = true;
+        decode(path, opts);
+
+        return prepareSampling(opts, options);
+    }
+
+    /**
+     * Decodes the bounds of the image read from the stream and prepares
+     * the options to decode it for the paper size and printer resolution.
+     *
+     * @param stream  The stream to read the image from.
+     * @param options The print job settings.
+     *
+     * @return The decode options or null if its not a valid image.
+     */
+    @Nullable
+    static BitmapFactory.Options decodeBounds (@NonNull InputStream stream,
+                                               @NonNull PrintOptions options)
+    {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(stream, null, opts);
+
+        return prepareSampling(opts, options);
+    }
+
+    /**
+     * Prepares the options with the decoded bounds to decode the image
+     * for the paper size and printer resolution.
+     *
+     * @param opts    The options with the decoded bounds.
+     * @param options The print job settings.
+     *
+     * @return The decode options or null if no bounds have been decoded.
+     */
+    @Nullable
+    private static BitmapFactory.Options prepareSampling (@NonNull BitmapFactory.Options opts,
+                                                          @NonNull PrintOptions options)
+    {
+        if (opts.outWidth <= 0 || opts.outHeight <= 0)
+            return null;
+
+        opts.inJustDecodeBounds = false;
+        opts.inPreferredConfig  = options.getBitmapConfig();
+        opts.inSampleSize       = getSampleSize(opts.outWidth, opts.outHeight, options.getPixelSize());
+
+        return opts;
     }
 
     /**
      * Decodes a file://, res:// or base64:// Uri to bitmap.
      *
      * @param path The file path to decode.
+     * @param opts The options how to decode the image.
      *
      * @return A bitmap or null if the path is not valid
      */
     @Nullable
-    private Bitmap decode (@NonNull String path)
+    private Bitmap decode (@NonNull String path, @NonNull BitmapFactory.Options opts)
     {
         Bitmap bitmap;
 
         if (path.startsWith("res:"))
         {
-            bitmap = io.decodeResource(path);
+            bitmap = io.decodeResource(path, opts);
         }
         else if (path.startsWith("file:///"))
         {
-            bitmap = io.decodeFile(path);
+            bitmap = io.decodeFile(path, opts);
         }
         else if (path.startsWith("file://"))
         {
-            bitmap = io.decodeAsset(path);
+            bitmap = io.decodeAsset(path, opts);
         }
         else if (path.startsWith("base64:"))
         {
-            bitmap = io.decodeBase64(path);
+            bitmap = io.decodeBase64(path, opts);
+        }
+        else if (path.startsWith("buffer:"))
+        {
+            bitmap = io.decodeBytes(path, opts);
         }
         else {
-            bitmap = BitmapFactory.decodeFile(path);
+            bitmap = BitmapFactory.decodeFile(path, opts);
         }
 
         return bitmap;
     }
+
+    /**
+     * Returns the max number of bytes the pixels of the images drawn into
+     * one document may take. The pages of a PrintedPdfDocument keep a copy
+     * of every drawn bitmap until the document gets written.
+     */
+    static long getPixelBudget()
+    {
+        return Runtime.getRuntime().maxMemory() / 8;
+    }
+
+    /**
+     * Doubles the sample size until the pixels of the subsampled image fit
+     * into the memory budget.
+     *
+     * @param width      The width of the image.
+     * @param height     The height of the image.
+     * @param sampleSize The sample size needed for the paper size.
+     * @param config     The pixel format to decode into.
+     * @param budget     Max number of bytes for the pixels.
+     */
+    static int fitSampleSize (int width, int height, int sampleSize,
+                              @NonNull Bitmap.Config config, long budget)
+    {
+        int depth = config == Bitmap.Config.RGB_565 ? 2 : 4;
+
+        while ((long) (width / sampleSize) * (height / sampleSize) * depth > budget
+                && sampleSize < Math.max(width, height))
+        {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    /**
+     * Returns the largest power of two to subsample the image with while
+     * it still covers the target size in both dimensions.
+     *
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @param target The size in pixels to cover.
+     */
+    static int getSampleSize (int width, int height, @NonNull int[] target)
+    {
+        int longSide    = Math.max(width, height);
+        int shortSide   = Math.min(width, height);
+        int targetLong  = Math.max(target[0], target[1]);
+        int targetShort = Math.min(target[0], target[1]);
+        int sampleSize  = 1;
+
+        while (longSide / (sampleSize * 2) >= targetLong
+                && shortSide / (sampleSize * 2) >= targetShort)
+        {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    /**
+     * The fingerprint of base64 content. The content is compared by
+     * identity, as the same job passes the same string.
+     */
+    private static final class Fingerprint
+    {
+        // The hashed content
+        final @NonNull String path;
+
+        // The fingerprint of the content
+        final @NonNull String key;
+
+        Fingerprint (@NonNull String path, @NonNull String key)
+        {
+            this.path = path;
+            this.key  = key;
+        }
+    }
 }
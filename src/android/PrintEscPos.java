@@ -0,0 +1,295 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.pdf.PdfRenderer;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static android.graphics.pdf.PdfRenderer.Page.RENDER_MODE_FOR_PRINT;
+
+/**
+ * Encodes pages into the raster commands of thermal ESC/POS printers.
+ * Each page gets scaled to the print width, dithered to black and white
+ * row by row with Floyd-Steinberg error diffusion and emitted as GS v 0
+ * raster images in bands of rows. The buffers for the pixels, errors and
+ * bands are allocated once per encoder, so that encoding a row doesn't
+ * allocate anything.
+ */
+class PrintEscPos
+{
+    // Print width in dots of 80 mm paper at 203 dpi
+    static final int DEFAULT_WIDTH = 576;
+
+    // Max number of rows per raster command
+    private static final int BAND_HEIGHT = 256;
+
+    // Luminance below which a dot gets printed
+    private static final int THRESHOLD = 128;
+
+    // The print width in dots
+    private final int width;
+
+    // The number of bytes per raster row
+    private final int bytesPerRow;
+
+    // The pixels of the current row
+    private final int[] pixels;
+
+    // The errors diffused into the current row, padded by one each side
+    private int[] errors;
+
+    // The errors diffused into the next row, padded by one each side
+    private int[] nextErrors;
+
+    // The raster rows of the current band
+    private final byte[] band;
+
+    // The encoded commands
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    // The number of rows in the current band
+    private int bandRows;
+
+    /**
+     * Constructor. Initializes the printer.
+     *
+     * @param width The print width in dots.
+     */
+    PrintEscPos (int width)
+    {
+        this.width       = Math.max(width, 8);
+        this.bytesPerRow = (this.width + 7) / 8;
+        this.pixels      = new int[this.width];
+        this.errors      = new int[this.width + 2];
+        this.nextErrors  = new int[this.width + 2];
+        this.band        = new byte[bytesPerRow * BAND_HEIGHT];
+
+        out.write(0x1B);
+        out.write('@');
+    }
+
+    /**
+     * Encodes the image scaled to the print width.
+     *
+     * @param bitmap The image to print.
+     */
+    void addBitmap (@NonNull Bitmap bitmap)
+    {
+        Bitmap scaled = bitmap;
+
+        if (bitmap.getWidth() != width)
+        {
+            int height = Math.max(Math.round((float) bitmap.getHeight() * width / bitmap.getWidth()), 1);
+            scaled     = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        }
+
+        encode(scaled);
+
+        if (scaled != bitmap)
+        {
+            scaled.recycle();
+        }
+    }
+
+    /**
+     * Encodes each page of the PDF document, rendered at the print width.
+     * The bitmap gets reused by consecutive pages of the same height.
+     * Requires Android 5.0.
+     *
+     * @param file The PDF document.
+     *
+     * @throws IOException If the document is not readable.
+     */
+    void addDocument (@NonNull File file) throws IOException
+    {
+        ParcelFileDescriptor fd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        PdfRenderer renderer    = new PdfRenderer(fd);
+        Bitmap bitmap           = null;
+
+        try {
+            for (int i = 0; i < renderer.getPageCount(); i++)
+            {
+                PdfRenderer.Page page = renderer.openPage(i);
+                int height            = Math.max(Math.round((float) page.getHeight() * width / page.getWidth()), 1);
+
+                if (bitmap == null || bitmap.getHeight() != height)
+                {
+                    if (bitmap != null) bitmap.recycle();
+                    bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                }
+
+                bitmap.eraseColor(Color.WHITE);
+                page.render(bitmap, null, null, RENDER_MODE_FOR_PRINT);
+                page.close();
+
+                encode(bitmap);
+            }
+        } finally {
+            if (bitmap != null) bitmap.recycle();
+            renderer.close();
+            PrintIO.close(fd);
+        }
+    }
+
+    /**
+     * Feeds the paper past the cutter, cuts it if requested and returns
+     * the encoded commands.
+     *
+     * @param cut If the paper shall be cut.
+     */
+    @NonNull
+    byte[] finish (boolean cut)
+    {
+        out.write(0x1B);
+        out.write('d');
+        out.write(4);
+
+        if (cut)
+        {
+            out.write(0x1D);
+            out.write('V');
+            out.write(1);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Dithers the bitmap row by row into the band and flushes each full
+     * band as raster command. The bitmap must be of the print width.
+     *
+     * @param bitmap The image to encode.
+     */
+    private void encode (@NonNull Bitmap bitmap)
+    {
+        int height = bitmap.getHeight();
+
+        Arrays.fill(errors, 0);
+        Arrays.fill(nextErrors, 0);
+
+        for (int y = 0; y < height; y++)
+        {
+            bitmap.getPixels(pixels, 0, width, 0, y, width, 1);
+            ditherRow(bandRows * bytesPerRow);
+
+            if (++bandRows == BAND_HEIGHT)
+            {
+                flushBand();
+            }
+        }
+
+        flushBand();
+    }
+
+    /**
+     * Dithers the current row of pixels into the band. The quantization
+     * error of each pixel gets diffused to the right and into the next row.
+     *
+     * @param offset The offset of the row within the band.
+     */
+    private void ditherRow (int offset)
+    {
+        int[] errs = errors;
+        int[] next = nextErrors;
+        int bits   = 0;
+
+        for (int x = 0; x < width; x++)
+        {
+            int value = luminance(pixels[x]) + (errs[x + 1] >> 4);
+            int error;
+
+            bits <<= 1;
+
+            if (value < THRESHOLD) {
+                bits |= 1;
+                error = value;
+            } else {
+                error = value - 255;
+            }
+
+            errs[x + 2] += error * 7;
+            next[x]     += error * 3;
+            next[x + 1] += error * 5;
+            next[x + 2] += error;
+
+            if ((x & 7) == 7)
+            {
+                band[offset + (x >> 3)] = (byte) bits;
+                bits = 0;
+            }
+        }
+
+        if ((width & 7) != 0)
+        {
+            band[offset + bytesPerRow - 1] = (byte) (bits << (8 - (width & 7)));
+        }
+
+        Arrays.fill(errs, 0);
+        errors     = next;
+        nextErrors = errs;
+    }
+
+    /**
+     * Writes the rows of the band as GS v 0 raster command.
+     */
+    private void flushBand()
+    {
+        if (bandRows == 0)
+            return;
+
+        out.write(0x1D);
+        out.write('v');
+        out.write('0');
+        out.write(0);
+        out.write(bytesPerRow & 0xFF);
+        out.write(bytesPerRow >> 8);
+        out.write(bandRows & 0xFF);
+        out.write(bandRows >> 8);
+        out.write(band, 0, bandRows * bytesPerRow);
+
+        bandRows = 0;
+    }
+
+    /**
+     * Returns the luminance of the pixel, blended onto white paper.
+     *
+     * @param color The ARGB color of the pixel.
+     */
+    private static int luminance (int color)
+    {
+        int alpha = color >>> 24;
+        int r     = (color >> 16) & 0xFF;
+        int g     = (color >> 8) & 0xFF;
+        int b     = color & 0xFF;
+        int lum   = (r * 77 + g * 150 + b * 29) >> 8;
+
+        return 255 - (alpha * (255 - lum) >> 8);
+    }
+}
@@ -22,64 +22,162 @@
 package de.appplant.cordova.plugin.printer;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Base64;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Provides IO utility functions to deal with the resources.
  */
 class PrintIO
 {
-    // Application context
-    private final @NonNull Context context;
+    // Size of the buffers used to stream content
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Recycled copy buffers, bounded to cap the retained memory
+    private static final ArrayBlockingQueue<byte[]> BUFFER_POOL = new ArrayBlockingQueue<>(4);
+
+    // Max number of cached resource ids
+    private static final int MAX_RES_IDS = 256;
+
+    // Resource ids by their path, 0 if there is no such resource
+    private final ConcurrentHashMap<String, Integer> resIds = new ConcurrentHashMap<>();
+
+    // The package name of the app
+    private final @NonNull String packageName;
+
+    // The asset manager of the app
+    private final @NonNull AssetManager assets;
+
+    // The resource bundle of the app
+    private final @NonNull Resources resources;
 
     /**
-     * Initializes the asset utils.
+     * Initializes the asset utils. The asset manager and resources get
+     * looked up once, so that the instance can be shared by all threads.
      *
      * @param ctx The application context.
      */
     PrintIO (@NonNull Context ctx)
     {
-        context = ctx;
+        packageName = ctx.getPackageName();
+        assets      = ctx.getAssets();
+        resources   = ctx.getResources();
     }
 
     /**
      * Copies content of input stream to output stream.
      *
+     * If both ends are plain files the bytes are moved by the kernel
+     * through their channels, otherwise they are streamed through a
+     * fixed-size pooled buffer. Neither stream gets marked, reset or closed.
+     *
      * @param input  The readable input stream.
      * @param output The writable output stream.
      *
+     * @return The number of copied bytes.
+     *
      * @throws IOException If the input stream is not readable,
      *                     or the output stream is not writable.
      */
-    static void copy (@NonNull InputStream input,
+    static long copy (@NonNull InputStream input,
                       @NonNull OutputStream output) throws IOException
     {
-        byte[] buf = new byte[input.available()];
+        if (input.getClass() == FileInputStream.class && output instanceof FileOutputStream)
+        {
+            return copy(((FileInputStream) input).getChannel(),
+                        ((FileOutputStream) output).getChannel());
+        }
+
+        byte[] buf = obtainBuffer();
+        long total = 0;
         int bytesRead;
 
-        input.mark(Integer.MAX_VALUE);
+        try {
+            while ((bytesRead = input.read(buf)) != -1)
+            {
+                output.write(buf, 0, bytesRead);
+                total += bytesRead;
+            }
+        } finally {
+            recycleBuffer(buf);
+        }
 
-        while ((bytesRead = input.read(buf)) > 0)
+        output.flush();
+
+        return total;
+    }
+
+    /**
+     * Transfers the remaining content of the input channel to the output
+     * channel without passing it through the Java heap.
+     *
+     * @param input  The readable file channel.
+     * @param output The writable file channel.
+     *
+     * @return The number of copied bytes.
+     *
+     * @throws IOException If the channels are not accessible.
+     */
+    static long copy (@NonNull FileChannel input,
+                      @NonNull FileChannel output) throws IOException
+    {
+        long pos   = input.position();
+        long size  = input.size();
+        long total = 0;
+        long count;
+
+        while (pos + total < size)
         {
-            output.write(buf, 0, bytesRead);
+            count = input.transferTo(pos + total, size - pos - total, output);
+
+            if (count <= 0) break;
+
+            total += count;
         }
 
-        input.reset();
-        close(output);
+        input.position(pos + total);
+
+        return total;
+    }
+
+    /**
+     * Takes a copy buffer from the pool or allocates a new one.
+     */
+    @NonNull
+    private static byte[] obtainBuffer()
+    {
+        byte[] buf = BUFFER_POOL.poll();
+
+        return buf != null ? buf : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Puts the copy buffer back into the pool if there is space left.
+     *
+     * @param buf The buffer to recycle.
+     */
+    private static void recycleBuffer (@NonNull byte[] buf)
+    {
+        BUFFER_POOL.offer(buf);
     }
 
     /**
@@ -96,6 +194,21 @@ class PrintIO
         }
     }
 
+    /**
+     * Returns the file referenced by a file:/// path.
+     *
+     * @param path The path to the file.
+     *
+     * @return The file or null if its not a readable regular file.
+     */
+    @Nullable
+    File getFile (@NonNull String path)
+    {
+        File file = new File(path.substring(7));
+
+        return file.isFile() && file.canRead() ? file : null;
+    }
+
     /**
      * Opens an file given as a file:/// path.
      *
@@ -119,15 +232,16 @@ class PrintIO
      * Decodes an file given as a file:/// path to a bitmap.
      *
      * @param path The path to the file.
+     * @param opts The options how to decode the image.
      *
      * @return A bitmap or null if the path is not valid
      */
     @Nullable
-    Bitmap decodeFile (@NonNull String path)
+    Bitmap decodeFile (@NonNull String path, @NonNull BitmapFactory.Options opts)
     {
         String absPath = path.substring(7);
 
-        return BitmapFactory.decodeFile(absPath);
+        return BitmapFactory.decodeFile(absPath, opts);
     }
 
     /**
@@ -153,22 +267,14 @@ class PrintIO
      * Decodes an asset file given as a file:// path to a bitmap.
      *
      * @param path The path to the asset.
+     * @param opts The options how to decode the image.
      *
      * @return A bitmap or null if the path is not valid
      */
     @Nullable
-    Bitmap decodeAsset (@NonNull String path)
+    Bitmap decodeAsset (@NonNull String path, @NonNull BitmapFactory.Options opts)
     {
-        InputStream stream  = openAsset(path);
-        Bitmap bitmap;
-
-        if (stream == null) return null;
-
-        bitmap = BitmapFactory.decodeStream(stream);
-
-        close(stream);
-
-        return bitmap;
+        return decodeStream(openAsset(path), opts);
     }
 
     /**
@@ -178,72 +284,279 @@ class PrintIO
      *
      * @return An open IO stream or null if the file does not exist.
      */
-    @NonNull
+    @Nullable
     InputStream openResource (@NonNull String path)
     {
         String resPath = path.substring(6);
         int resId      = getResId(resPath);
 
-        return getResources().openRawResource(resId);
+        try {
+            return getResources().openRawResource(resId);
+        } catch (Resources.NotFoundException e) {
+            return null;
+        }
     }
 
     /**
      * Decodes a resource given as a res:// path to a bitmap.
      *
      * @param path The path to the resource.
+     * @param opts The options how to decode the image.
      *
      * @return A bitmap or null if the path is not valid
      */
     @Nullable
-    Bitmap decodeResource (@NonNull String path)
+    Bitmap decodeResource (@NonNull String path, @NonNull BitmapFactory.Options opts)
     {
-        String data  = path.substring(9);
-        byte[] bytes = Base64.decode(data, 0);
-
-        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        return decodeStream(openResource(path), opts);
     }
 
     /**
-     * Opens a resource file given as a res:// path.
+     * Opens a base64:// string as a stream which decodes the data
+     * chunk by chunk while reading.
      *
-     * @param path The path to the resource.
+     * @param path The base64 string.
      *
-     * @return An open IO stream or null if the file does not exist.
+     * @return An open IO stream.
      */
     @NonNull
     InputStream openBase64 (@NonNull String path)
     {
-        String data  = path.substring(9);
-        byte[] bytes = Base64.decode(data, 0);
-
-        return new ByteArrayInputStream(bytes);
+        return new PrintBase64Stream(path, 9);
     }
 
     /**
      * Decodes a resource given as a base64:// string to a bitmap.
      *
      * @param path The given relative path.
+     * @param opts The options how to decode the image.
      *
      * @return A bitmap or null if the path is not valid
      */
     @Nullable
-    Bitmap decodeBase64 (@NonNull String path)
+    Bitmap decodeBase64 (@NonNull String path, @NonNull BitmapFactory.Options opts)
+    {
+        return decodeStream(new BufferedInputStream(openBase64(path)), opts);
+    }
+
+    /**
+     * Opens the content of a buffer:// Uri as a stream.
+     *
+     * @param path The buffer:// Uri.
+     *
+     * @return An open IO stream or null if the content has been released.
+     */
+    @Nullable
+    InputStream openBytes (@NonNull String path)
     {
-        String data  = path.substring(9);
-        byte[] bytes = Base64.decode(data, 0);
+        byte[] bytes = PrintBytes.get(path);
 
-        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        return bytes != null ? new ByteArrayInputStream(bytes) : null;
     }
 
     /**
-     * Returns the resource ID for the given resource path.
+     * Decodes the content of a buffer:// Uri to a bitmap.
      *
-     * @return The resource ID for the given resource.
+     * @param path The buffer:// Uri.
+     * @param opts The options how to decode the image.
+     *
+     * @return A bitmap or null if the content has been released.
+     */
+    @Nullable
+    Bitmap decodeBytes (@NonNull String path, @NonNull BitmapFactory.Options opts)
+    {
+        byte[] bytes = PrintBytes.get(path);
+
+        return bytes != null ? BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opts) : null;
+    }
+
+    /**
+     * Decodes the stream to a bitmap and closes it afterwards.
+     *
+     * @param stream The stream to decode.
+     * @param opts   The options how to decode the image.
+     *
+     * @return A bitmap or null if the stream is not valid
+     */
+    @Nullable
+    private Bitmap decodeStream (@Nullable InputStream stream,
+                                 @NonNull BitmapFactory.Options opts)
+    {
+        Bitmap bitmap;
+
+        if (stream == null) return null;
+
+        bitmap = BitmapFactory.decodeStream(stream, null, opts);
+
+        close(stream);
+
+        return bitmap;
+    }
+
+    /**
+     * Opens a file given as a file:/// path for random access.
+     *
+     * @param path The path to the file.
+     *
+     * @return The content or null if the file does not exist.
+     */
+    @Nullable
+    PrintPdf.Input openFileInput (@NonNull String path)
+    {
+        File file = getFile(path);
+
+        if (file == null) return null;
+
+        try {
+            return new PrintPdf.FileInput(new FileInputStream(file).getChannel());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens an uncompressed asset file given as a file:// path for
+     * random access.
+     *
+     * @param path The path to the asset.
+     *
+     * @return The content or null if the asset is compressed or missing.
+     */
+    @Nullable
+    PrintPdf.Input openAssetInput (@NonNull String path)
+    {
+        String resPath = path.replaceFirst("file:/", "www");
+
+        try {
+            return openInput(getAssets().openFd(resPath));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens an uncompressed resource file given as a res:// path for
+     * random access.
+     *
+     * @param path The path to the resource.
+     *
+     * @return The content or null if the resource is compressed or missing.
+     */
+    @Nullable
+    PrintPdf.Input openResourceInput (@NonNull String path)
+    {
+        String resPath = path.substring(6);
+        int resId      = getResId(resPath);
+
+        try {
+            return openInput(getResources().openRawResourceFd(resId));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens a base64:// string for random access.
+     *
+     * @param path The base64 string.
+     *
+     * @return The content or null if the data is not continuous.
+     */
+    @Nullable
+    PrintPdf.Input openBase64Input (@NonNull String path)
+    {
+        try {
+            return new PrintPdf.Base64Input(path, 9);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens the content of a buffer:// Uri for random access.
+     *
+     * @param path The buffer:// Uri.
+     *
+     * @return The content or null if it has been released.
+     */
+    @Nullable
+    PrintPdf.Input openBytesInput (@NonNull String path)
+    {
+        byte[] bytes = PrintBytes.get(path);
+
+        return bytes != null ? new PrintPdf.ByteInput(bytes) : null;
+    }
+
+    /**
+     * Opens the region of the asset file descriptor for random access.
+     *
+     * @param afd The descriptor of the asset.
+     *
+     * @return The content or null if the descriptor is missing.
+     */
+    @Nullable
+    private PrintPdf.Input openInput (@Nullable AssetFileDescriptor afd)
+            throws IOException
+    {
+        if (afd == null) return null;
+
+        FileChannel channel = afd.createInputStream().getChannel();
+
+        return new PrintPdf.FileInput(channel, afd.getStartOffset(), afd.getLength());
+    }
+
+    /**
+     * Looks up the resource ids of the res:// paths upfront, so that
+     * later calls don't need to go through the reflective lookup.
+     *
+     * @param paths The res:// paths of the resources.
+     */
+    void preloadResIds (@NonNull String[] paths)
+    {
+        for (String path : paths)
+        {
+            if (path.startsWith("res://"))
+            {
+                getResId(path.substring(6));
+            }
+        }
+    }
+
+    /**
+     * Returns the resource ID for the given resource path. The result
+     * gets cached, also if there is no such resource.
+     *
+     * @return The resource ID for the given resource or 0.
      */
     private int getResId (@NonNull String resPath)
+    {
+        Integer resId = resIds.get(resPath);
+
+        if (resId != null)
+            return resId;
+
+        resId = lookupResId(resPath);
+
+        if (resIds.size() >= MAX_RES_IDS)
+        {
+            resIds.clear();
+        }
+
+        resIds.put(resPath, resId);
+
+        return resId;
+    }
+
+    /**
+     * Looks up the resource ID for the given resource path through the
+     * resources, which is a slow reflective call.
+     *
+     * @return The resource ID for the given resource or 0.
+     */
+    private int lookupResId (@NonNull String resPath)
     {
         Resources res   = getResources();
-        String pkgName  = context.getPackageName();
+        String pkgName  = packageName;
         String dirName  = "drawable";
         String fileName = resPath;
 
@@ -253,7 +566,8 @@ class PrintIO
             fileName = resPath.substring(resPath.lastIndexOf('/') + 1);
         }
 
-        String resName = fileName.substring(0, fileName.lastIndexOf('.'));
+        int dot        = fileName.lastIndexOf('.');
+        String resName = dot != -1 ? fileName.substring(0, dot) : fileName;
         int resId      = res.getIdentifier(resName, dirName, pkgName);
 
         if (resId == 0)
@@ -274,7 +588,7 @@ class PrintIO
      */
     private AssetManager getAssets()
     {
-        return context.getAssets();
+        return assets;
     }
 
     /**
@@ -282,6 +596,6 @@ class PrintIO
      */
     private Resources getResources()
     {
-        return context.getResources();
+        return resources;
     }
 }
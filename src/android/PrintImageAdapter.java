@@ -0,0 +1,295 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.pdf.PdfDocument;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.print.PageRange;
+import android.print.PrintAttributes;
+import android.print.PrintDocumentAdapter;
+import android.print.PrintDocumentInfo;
+import android.print.pdf.PrintedPdfDocument;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.print.PrintHelper;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+
+import static android.print.PrintDocumentInfo.CONTENT_TYPE_PHOTO;
+
+/**
+ * Document adapter to print images which are too large to be decoded
+ * at once. The image gets decoded region by region and drawn tile by tile
+ * onto the page, so that the decoder doesn't need memory for the whole
+ * image. The page keeps a copy of each drawn tile until the document gets
+ * written though, so the image gets subsampled until all tiles together
+ * fit into the pixel budget. The write passes run on the executor, as the
+ * framework invokes them on the UI thread.
+ */
+class PrintImageAdapter extends PrintDocumentAdapter
+{
+    // Max edge length of a decoded tile in pixels
+    private static final int TILE_SIZE = 1024;
+
+    // The application context
+    private final @NonNull Context context;
+
+    // Runs the write passes
+    private final @NonNull Executor executor;
+
+    // The name of the print job
+    private final @NonNull String jobName;
+
+    // The print job settings
+    private final @NonNull PrintOptions options;
+
+    // Opens the image for every write pass
+    private final @NonNull PrintAdapter.StreamFactory factory;
+
+    // The callback to inform once the job is done
+    private final @NonNull PrintHelper.OnPrintFinishCallback callback;
+
+    // The attributes of the last layout pass
+    private @Nullable PrintAttributes attributes;
+
+    /**
+     * Constructor
+     *
+     * @param context  The application context.
+     * @param executor Runs the write passes.
+     * @param options  The print job settings.
+     * @param factory  Opens the image for every write pass.
+     * @param callback The callback to inform once the job is done.
+     */
+    PrintImageAdapter (@NonNull Context context,
+                       @NonNull Executor executor,
+                       @NonNull PrintOptions options,
+                       @NonNull PrintAdapter.StreamFactory factory,
+                       @NonNull PrintHelper.OnPrintFinishCallback callback)
+    {
+        this.context  = context;
+        this.executor = executor;
+        this.jobName  = options.getJobName();
+        this.options  = options;
+        this.factory  = factory;
+        this.callback = callback;
+    }
+
+    @Override
+    public void onLayout (PrintAttributes oldAttributes,
+                          PrintAttributes newAttributes,
+                          CancellationSignal cancellationSignal,
+                          LayoutResultCallback callback,
+                          Bundle bundle)
+    {
+        PrintDocumentInfo pdi;
+
+        if (cancellationSignal.isCanceled())
+            return;
+
+        attributes = newAttributes;
+
+        pdi = new PrintDocumentInfo.Builder(jobName)
+                .setContentType(CONTENT_TYPE_PHOTO)
+                .setPageCount(1)
+                .build();
+
+        boolean changed = !newAttributes.equals(oldAttributes);
+
+        callback.onLayoutFinished(pdi, changed);
+    }
+
+    @Override
+    public void onWrite (PageRange[] range,
+                         ParcelFileDescriptor dest,
+                         CancellationSignal cancellationSignal,
+                         WriteResultCallback callback)
+    {
+        PrintAttributes attrs = attributes;
+
+        if (cancellationSignal.isCanceled() || attrs == null)
+            return;
+
+        executor.execute(() -> write(attrs, dest, cancellationSignal, callback));
+    }
+
+    /**
+     * Draws the image tile by tile onto the page and writes the document
+     * into the output file. Runs on the executor.
+     *
+     * @param attrs    The attributes of the layout pass.
+     * @param dest     The output file.
+     * @param signal   To check if the job has been canceled.
+     * @param callback The callback to inform once the page is written.
+     */
+    private void write (@NonNull PrintAttributes attrs,
+                        @NonNull ParcelFileDescriptor dest,
+                        @NonNull CancellationSignal signal,
+                        @NonNull WriteResultCallback callback)
+    {
+        PrintedPdfDocument doc      = new PrintedPdfDocument(context, attrs);
+        FileOutputStream output     = new FileOutputStream(dest.getFileDescriptor());
+        BitmapRegionDecoder decoder = null;
+
+        try {
+            decoder = openDecoder();
+
+            PdfDocument.Page page = doc.startPage(0);
+            boolean done          = drawTiles(decoder, page.getCanvas(), doc.getPageContentRect(), signal);
+
+            doc.finishPage(page);
+
+            if (!done)
+            {
+                callback.onWriteCancelled();
+                return;
+            }
+
+            doc.writeTo(output);
+        } catch (IOException e) {
+            callback.onWriteFailed(e.getMessage());
+            return;
+        } finally {
+            if (decoder != null) decoder.recycle();
+            doc.close();
+            PrintIO.close(output);
+        }
+
+        callback.onWriteFinished(new PageRange[]{ new PageRange(0, 0) });
+    }
+
+    /**
+     * Invokes the callback.
+     */
+    @Override
+    public void onFinish ()
+    {
+        super.onFinish();
+        callback.onFinish();
+    }
+
+    /**
+     * Opens a region decoder for the image.
+     *
+     * @throws IOException If the image can't be opened or its format does
+     *                     not support region decoding.
+     */
+    @NonNull
+    private BitmapRegionDecoder openDecoder() throws IOException
+    {
+        InputStream stream = factory.open();
+
+        if (stream == null)
+            throw new IOException("Content is not accessible anymore");
+
+        try {
+            return BitmapRegionDecoder.newInstance(stream, false);
+        } finally {
+            PrintIO.close(stream);
+        }
+    }
+
+    /**
+     * Decodes the image region by region and draws the tiles into the
+     * content area of the page. The image gets centered and either fit
+     * into or fills the content area.
+     *
+     * @param decoder The decoder for the image.
+     * @param canvas  The canvas of the page.
+     * @param content The content area of the page in points.
+     * @param signal  To check if the job has been canceled.
+     *
+     * @return false if the job has been canceled.
+     */
+    private boolean drawTiles (@NonNull BitmapRegionDecoder decoder,
+                               @NonNull Canvas canvas, @NonNull Rect content,
+                               @NonNull CancellationSignal signal)
+    {
+        int width    = decoder.getWidth();
+        int height   = decoder.getHeight();
+        float scaleX = (float) content.width() / width;
+        float scaleY = (float) content.height() / height;
+        float scale  = options.isAutoFit() ? Math.min(scaleX, scaleY) : Math.max(scaleX, scaleY);
+        float left   = content.left + (content.width() - width * scale) / 2;
+        float top    = content.top + (content.height() - height * scale) / 2;
+        int dpi      = options.getDpi();
+
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        Paint paint                = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Rect region                = new Rect();
+        RectF target               = new RectF();
+
+        opts.inPreferredConfig = options.getBitmapConfig();
+        opts.inSampleSize      = PrintContent.getSampleSize(width, height, new int[] {
+                (int) Math.ceil(width * scale / 72 * dpi),
+                (int) Math.ceil(height * scale / 72 * dpi)
+        });
+        opts.inSampleSize      = PrintContent.fitSampleSize(width, height, opts.inSampleSize,
+                opts.inPreferredConfig, PrintContent.getPixelBudget());
+
+        int tile = TILE_SIZE * opts.inSampleSize;
+
+        canvas.save();
+        canvas.clipRect(content);
+
+        for (int y = 0; y < height; y += tile)
+        {
+            for (int x = 0; x < width; x += tile)
+            {
+                if (signal.isCanceled())
+                {
+                    canvas.restore();
+                    return false;
+                }
+
+                region.set(x, y, Math.min(x + tile, width), Math.min(y + tile, height));
+
+                Bitmap bitmap = decoder.decodeRegion(region, opts);
+
+                if (bitmap == null) continue;
+
+                target.set(left + region.left * scale, top + region.top * scale,
+                           left + region.right * scale, top + region.bottom * scale);
+
+                canvas.drawBitmap(bitmap, null, target, paint);
+                bitmap.recycle();
+            }
+        }
+
+        canvas.restore();
+
+        return true;
+    }
+}
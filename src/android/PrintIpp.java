@@ -0,0 +1,738 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.webkit.WebView;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.appplant.cordova.plugin.printer.PrintManager.OnPrintFinishCallback;
+
+/**
+ * Minimal IPP/1.1 client to submit jobs to network printers without the
+ * print dialog. The document gets streamed in chunks with the Print-Job
+ * request, the state of the created job is then polled through
+ * Get-Job-Attributes until the job is done. Images are sent with their own mime type, if the
+ * printer doesn't support it they get rendered into a PDF document and
+ * submitted again. Requests are sent through HttpURLConnection, whose
+ * connections are kept alive and reused by the next job as long as each
+ * response has been read to its end.
+ */
+class PrintIpp
+{
+    // Log tag
+    private static final String TAG = "PrintIpp";
+
+    // The default port of IPP
+    private static final int DEFAULT_PORT = 631;
+
+    // Timeout in milliseconds to connect and to read the response
+    private static final int TIMEOUT = 30000;
+
+    // Size of the chunks the document gets streamed in
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    // Operation ids
+    private static final int PRINT_JOB          = 0x0002;
+    private static final int GET_JOB_ATTRIBUTES = 0x0009;
+
+    // Delimiter tags
+    private static final int OPERATION_ATTRIBUTES = 0x01;
+    private static final int JOB_ATTRIBUTES       = 0x02;
+    private static final int END_OF_ATTRIBUTES    = 0x03;
+
+    // Value tags
+    private static final int INTEGER   = 0x21;
+    private static final int ENUM      = 0x23;
+    private static final int NAME      = 0x42;
+    private static final int KEYWORD   = 0x44;
+    private static final int URI       = 0x45;
+    private static final int CHARSET   = 0x47;
+    private static final int LANGUAGE  = 0x48;
+    private static final int MIME_TYPE = 0x49;
+
+    // Status code of client-error-document-format-not-supported
+    private static final int DOCUMENT_FORMAT_NOT_SUPPORTED = 0x040A;
+
+    // Job states which mean the job is done
+    private static final int JOB_CANCELED  = 7;
+    private static final int JOB_ABORTED   = 8;
+    private static final int JOB_COMPLETED = 9;
+
+    // The encoding of all strings
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Source of the request ids
+    private static final AtomicInteger REQUEST_IDS = new AtomicInteger();
+
+    // The application context
+    private final @NonNull Context context;
+
+    // Renders markup into PDF documents
+    private final @NonNull PrintManager manager;
+
+    // Runs the requests off the calling thread
+    private final @NonNull Executor executor;
+
+    // Counters reported by getStats
+    private final AtomicLong jobCount   = new AtomicLong();
+    private final AtomicLong failCount  = new AtomicLong();
+    private final AtomicLong submitTime = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param context  The application context.
+     * @param manager  Renders markup into PDF documents.
+     * @param executor Runs the requests off the calling thread.
+     */
+    PrintIpp (@NonNull Context context, @NonNull PrintManager manager,
+              @NonNull Executor executor)
+    {
+        this.context  = context;
+        this.manager  = manager;
+        this.executor = executor;
+    }
+
+    /**
+     * If the printer is addressed by an ipp:// or ipps:// uri.
+     *
+     * @param printer The printer option of the job.
+     */
+    static boolean isPrinterUri (@Nullable String printer)
+    {
+        return printer != null && (printer.startsWith("ipp://") || printer.startsWith("ipps://"));
+    }
+
+    /**
+     * Submits the content to the printer given by the settings. PDF
+     * documents and images are sent as they are, markup and plain text
+     * get rendered into a PDF document first. So do images if the printer
+     * doesn't support their format.
+     *
+     * @param content  The content or file to print.
+     * @param settings The printer and how to render the content.
+     * @param view     The web view of the app for rendering its content.
+     * @param callback The function to invoke once the job is done.
+     */
+    void print (@Nullable String content, @NonNull JSONObject settings,
+                @NonNull WebView view, @NonNull OnPrintFinishCallback callback)
+    {
+        String printer     = settings.optString("printer");
+        PrintSource source = PrintSource.resolve(content, context);
+
+        switch (source.getType())
+        {
+            case PDF:
+                callback.onSpool(() -> executor.execute(() -> {
+                    submit(printer, settings, "application/pdf", source::open, callback, null);
+                    source.close();
+                }));
+                break;
+            case IMAGE:
+                String format = source.getMimeType();
+
+                callback.onSpool(() -> executor.execute(() -> {
+                    submit(printer, settings, format, source::open, callback,
+                            () -> submitRendered(content, settings, view, true, callback));
+                    source.close();
+                }));
+                break;
+            case UNSUPPORTED:
+                source.close();
+                callback.onFinish(false);
+                break;
+            default:
+                source.close();
+                submitRendered(content, settings, view, false, callback);
+        }
+    }
+
+    /**
+     * Renders the content into a PDF document and submits it.
+     *
+     * @param content  The content or file to print.
+     * @param settings The printer and how to render the content.
+     * @param view     The web view of the app for rendering its content.
+     * @param spooled  If the job has been handed over to the printer
+     *                 already, e.g. to retry it as PDF document.
+     * @param callback The function to invoke once the job is done.
+     */
+    private void submitRendered (@Nullable String content, @NonNull JSONObject settings,
+                                 @NonNull WebView view, boolean spooled,
+                                 @NonNull OnPrintFinishCallback callback)
+    {
+        String printer = settings.optString("printer");
+
+        manager.render(content, settings, view, (File file, String error) -> {
+            if (file == null)
+            {
+                callback.onFinish(false);
+                return;
+            }
+
+            Runnable submit = () -> executor.execute(() -> {
+                submit(printer, settings, "application/pdf", () -> openFile(file), callback, null);
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            });
+
+            if (spooled) {
+                submit.run();
+            } else {
+                callback.onSpool(submit);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of submitted and failed jobs and the average
+     * time in milliseconds until the printer has accepted a job.
+     */
+    @NonNull
+    JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        long jobs        = jobCount.get();
+
+        try {
+            stats.put("jobs", jobs);
+            stats.put("failures", failCount.get());
+            stats.put("submitTime", jobs > 0 ? submitTime.get() / jobs : 0);
+        } catch (JSONException e) {
+            // ignore
+        }
+
+        return stats;
+    }
+
+    /**
+     * Submits the document and waits until the job is done. Informs the
+     * callback if the job has been completed, or accepted and not
+     * cancelled nor aborted if the printer doesn't report its state.
+     *
+     * @param printer  The ipp:// or ipps:// uri of the printer.
+     * @param settings The settings of the job.
+     * @param format   The mime type of the document.
+     * @param factory  Opens the document.
+     * @param callback The function to invoke once the job is done.
+     * @param fallback Invoked instead of the callback if the printer
+     *                 doesn't support the format, or null.
+     */
+    private void submit (@NonNull String printer, @NonNull JSONObject settings,
+                         @NonNull String format,
+                         @NonNull PrintAdapter.StreamFactory factory,
+                         @NonNull OnPrintFinishCallback callback,
+                         @Nullable Runnable fallback)
+    {
+        long start = SystemClock.elapsedRealtime();
+        boolean completed;
+
+        try {
+            Response res = printJob(printer, settings, format, factory);
+
+            submitTime.addAndGet(SystemClock.elapsedRealtime() - start);
+            jobCount.incrementAndGet();
+
+            int state = res.jobId > 0 ? awaitJobState(printer, res.jobId, res.jobState) : res.jobState;
+
+            completed = state != JOB_CANCELED && state != JOB_ABORTED;
+        } catch (IOException e) {
+            if (fallback != null && isFormatNotSupported(e))
+            {
+                fallback.run();
+                return;
+            }
+
+            Log.w(TAG, "Print job for " + printer + " failed", e);
+            failCount.incrementAndGet();
+            completed = false;
+        }
+
+        callback.onFinish(completed);
+    }
+
+    /**
+     * If the printer has refused the request because it doesn't support
+     * the format of the document.
+     *
+     * @param e The exception thrown by the request.
+     */
+    private static boolean isFormatNotSupported (@NonNull IOException e)
+    {
+        return e instanceof StatusException && ((StatusException) e).status == DOCUMENT_FORMAT_NOT_SUPPORTED;
+    }
+
+    /**
+     * Sends the Print-Job request with the document streamed in chunks.
+     *
+     * @param printer  The ipp:// or ipps:// uri of the printer.
+     * @param settings The settings of the job.
+     * @param format   The mime type of the document.
+     * @param factory  Opens the document.
+     *
+     * @return The response with the id and state of the created job.
+     *
+     * @throws IOException If the document is not accessible, the printer
+     *                     not reachable or the job has been refused.
+     */
+    @NonNull
+    private Response printJob (@NonNull String printer, @NonNull JSONObject settings,
+                          @NonNull String format,
+                          @NonNull PrintAdapter.StreamFactory factory)
+            throws IOException
+    {
+        Request req = new Request(PRINT_JOB, printer);
+        InputStream document;
+
+        req.attribute(NAME, "requesting-user-name", context.getPackageName());
+        req.attribute(NAME, "job-name", new PrintOptions(settings).getJobName());
+        req.attribute(MIME_TYPE, "document-format", format);
+        req.group(JOB_ATTRIBUTES);
+
+        if (settings.has("copies"))
+        {
+            req.attribute(INTEGER, "copies", settings.optInt("copies", 1));
+        }
+
+        switch (settings.optString("duplex"))
+        {
+            case "long":
+                req.attribute(KEYWORD, "sides", "two-sided-long-edge");
+                break;
+            case "short":
+                req.attribute(KEYWORD, "sides", "two-sided-short-edge");
+                break;
+            case "none":
+                req.attribute(KEYWORD, "sides", "one-sided");
+        }
+
+        if (settings.has("monochrome"))
+        {
+            req.attribute(KEYWORD, "print-color-mode", settings.optBoolean("monochrome") ? "monochrome" : "color");
+        }
+
+        document = factory.open();
+
+        if (document == null)
+            throw new FileNotFoundException("Content is not accessible anymore");
+
+        try {
+            return send(printer, req, document);
+        } finally {
+            PrintIO.close(document);
+        }
+    }
+
+    /**
+     * Polls the state of the job until it is completed, cancelled or
+     * aborted. Like PrintJobObserver does for the jobs of the print
+     * service, the interval starts short after each change and doubles
+     * while nothing changes.
+     *
+     * @param printer The ipp:// or ipps:// uri of the printer.
+     * @param jobId   The id of the job.
+     * @param state   The state reported by the Print-Job response.
+     *
+     * @return The final state, or the last known one if the printer can't
+     *         be queried or the job takes too long.
+     */
+    private int awaitJobState (@NonNull String printer, int jobId, int state)
+    {
+        long deadline = SystemClock.elapsedRealtime() + PrintJobObserver.MAX_AGE;
+        long interval = PrintJobObserver.MIN_INTERVAL;
+
+        while (!isDone(state) && SystemClock.elapsedRealtime() < deadline)
+        {
+            SystemClock.sleep(interval);
+
+            int next = getJobState(printer, jobId, 0);
+
+            if (next == 0)
+                break;
+
+            interval = next != state ? PrintJobObserver.MIN_INTERVAL
+                    : Math.min(interval * 2, PrintJobObserver.MAX_INTERVAL);
+            state    = next;
+        }
+
+        return state;
+    }
+
+    /**
+     * If the job state means the job is done.
+     *
+     * @param state The job-state enum value.
+     */
+    private static boolean isDone (int state)
+    {
+        return state == JOB_COMPLETED || state == JOB_CANCELED || state == JOB_ABORTED;
+    }
+
+    /**
+     * Queries the state of the job through Get-Job-Attributes.
+     *
+     * @param printer  The ipp:// or ipps:// uri of the printer.
+     * @param jobId    The id of the job.
+     * @param fallback The state reported by the Print-Job response.
+     *
+     * @return The job-state enum value, or the fallback if the printer
+     *         can't be queried.
+     */
+    private int getJobState (@NonNull String printer, int jobId, int fallback)
+    {
+        try {
+            Request req = new Request(GET_JOB_ATTRIBUTES, printer);
+
+            req.attribute(INTEGER, "job-id", jobId);
+            req.attribute(NAME, "requesting-user-name", context.getPackageName());
+            req.attribute(KEYWORD, "requested-attributes", "job-state");
+
+            int state = send(printer, req, null).jobState;
+
+            return state != 0 ? state : fallback;
+        } catch (IOException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Posts the request to the printer and reads the response to its end,
+     * so that the connection can be reused.
+     *
+     * @param printer  The ipp:// or ipps:// uri of the printer.
+     * @param req      The encoded request.
+     * @param document The document to append or null.
+     *
+     * @throws IOException If the printer is not reachable or the request
+     *                     has not been successful.
+     */
+    @NonNull
+    private Response send (@NonNull String printer, @NonNull Request req,
+                           @Nullable InputStream document)
+            throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection) toHttpUrl(printer).openConnection();
+        byte[] header          = req.toByteArray();
+
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setConnectTimeout(TIMEOUT);
+        conn.setReadTimeout(TIMEOUT);
+        conn.setRequestProperty("Content-Type", "application/ipp");
+
+        if (document != null) {
+            conn.setChunkedStreamingMode(CHUNK_SIZE);
+        } else {
+            conn.setFixedLengthStreamingMode(header.length);
+        }
+
+        OutputStream out = conn.getOutputStream();
+
+        try {
+            out.write(header);
+
+            if (document != null)
+            {
+                PrintIO.copy(document, out);
+            }
+        } finally {
+            PrintIO.close(out);
+        }
+
+        if (conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+        {
+            PrintIO.close(conn.getErrorStream() != null ? conn.getErrorStream() : conn.getInputStream());
+            throw new IOException("Printer responded with HTTP " + conn.getResponseCode());
+        }
+
+        InputStream in = conn.getInputStream();
+
+        try {
+            Response res = new Response(in);
+
+            if (res.status >= 0x0400)
+                throw new StatusException(res.status);
+
+            return res;
+        } finally {
+            PrintIO.close(in);
+        }
+    }
+
+    /**
+     * Converts the ipp:// or ipps:// uri into the http:// or https:// url
+     * to post the requests to.
+     *
+     * @param printer The uri of the printer.
+     *
+     * @throws IOException If the uri is malformed.
+     */
+    @NonNull
+    private static URL toHttpUrl (@NonNull String printer) throws IOException
+    {
+        URI uri;
+
+        try {
+            uri = new URI(printer);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid printer uri " + printer);
+        }
+
+        String scheme = uri.getScheme().equals("ipps") ? "https" : "http";
+        int port      = uri.getPort() != -1 ? uri.getPort() : DEFAULT_PORT;
+        String path   = uri.getRawPath() != null && !uri.getRawPath().isEmpty() ? uri.getRawPath() : "/";
+
+        return new URL(scheme, uri.getHost(), port, path);
+    }
+
+    /**
+     * Opens the rendered document.
+     *
+     * @param file The rendered document.
+     *
+     * @return null if the file does not exist anymore.
+     */
+    @Nullable
+    private static InputStream openFile (@NonNull File file)
+    {
+        try {
+            return new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Encodes the version, operation and attributes of an IPP request.
+     * The charset, language and printer uri are added right away.
+     */
+    private static final class Request
+    {
+        // The encoded bytes
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+
+        // Writes into the bytes
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        /**
+         * Constructor
+         *
+         * @param operation The operation id.
+         * @param printer   The ipp:// or ipps:// uri of the printer.
+         */
+        Request (int operation, @NonNull String printer) throws IOException
+        {
+            out.writeShort(0x0101);
+            out.writeShort(operation);
+            out.writeInt(REQUEST_IDS.incrementAndGet());
+            group(OPERATION_ATTRIBUTES);
+            attribute(CHARSET, "attributes-charset", "utf-8");
+            attribute(LANGUAGE, "attributes-natural-language", "en");
+            attribute(URI, "printer-uri", printer);
+        }
+
+        /**
+         * Starts the next group of attributes.
+         *
+         * @param tag The delimiter tag of the group.
+         */
+        void group (int tag) throws IOException
+        {
+            out.writeByte(tag);
+        }
+
+        /**
+         * Adds a string attribute.
+         *
+         * @param tag   The value tag.
+         * @param name  The name of the attribute.
+         * @param value The value of the attribute.
+         */
+        void attribute (int tag, @NonNull String name, @NonNull String value)
+                throws IOException
+        {
+            byte[] bytes = value.getBytes(UTF_8);
+
+            writeName(tag, name);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * Adds an integer or enum attribute.
+         *
+         * @param tag   The value tag.
+         * @param name  The name of the attribute.
+         * @param value The value of the attribute.
+         */
+        void attribute (int tag, @NonNull String name, int value)
+                throws IOException
+        {
+            writeName(tag, name);
+            out.writeShort(4);
+            out.writeInt(value);
+        }
+
+        /**
+         * Returns the encoded request, closed by the end tag.
+         */
+        @NonNull
+        byte[] toByteArray() throws IOException
+        {
+            out.writeByte(END_OF_ATTRIBUTES);
+
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Writes the value tag and the name of an attribute.
+         *
+         * @param tag  The value tag.
+         * @param name The name of the attribute.
+         */
+        private void writeName (int tag, @NonNull String name)
+                throws IOException
+        {
+            byte[] bytes = name.getBytes(UTF_8);
+
+            out.writeByte(tag);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Thrown if the printer has refused the request.
+     */
+    private static final class StatusException extends IOException
+    {
+        // The status code of the response
+        final int status;
+
+        /**
+         * Constructor
+         *
+         * @param status The status code of the response.
+         */
+        StatusException (int status)
+        {
+            super(String.format("Printer responded with IPP status 0x%04x", status));
+            this.status = status;
+        }
+    }
+
+    /**
+     * Decodes the status and the job attributes of an IPP response. Any
+     * other attribute gets skipped.
+     */
+    private static final class Response
+    {
+        // The status code
+        final int status;
+
+        // The job-id attribute or 0
+        int jobId;
+
+        // The job-state attribute or 0
+        int jobState;
+
+        /**
+         * Constructor. Reads the response to its end.
+         *
+         * @param stream The response body.
+         *
+         * @throws IOException If the response is malformed.
+         */
+        Response (@NonNull InputStream stream) throws IOException
+        {
+            DataInputStream in = new DataInputStream(stream);
+            String name        = null;
+            int tag;
+
+            in.readShort();
+            status = in.readUnsignedShort();
+            in.readInt();
+
+            while ((tag = in.read()) != END_OF_ATTRIBUTES)
+            {
+                if (tag == -1)
+                    throw new EOFException("Truncated IPP response");
+
+                if (tag < 0x10)
+                    continue;
+
+                byte[] key   = new byte[in.readUnsignedShort()];
+                in.readFully(key);
+                byte[] value = new byte[in.readUnsignedShort()];
+                in.readFully(value);
+
+                if (key.length > 0)
+                {
+                    name = new String(key, UTF_8);
+                }
+
+                if ((tag == INTEGER || tag == ENUM) && value.length == 4)
+                {
+                    int num = (value[0] & 0xff) << 24 | (value[1] & 0xff) << 16
+                            | (value[2] & 0xff) << 8 | value[3] & 0xff;
+
+                    if ("job-id".equals(name)) {
+                        jobId = num;
+                    } else if ("job-state".equals(name)) {
+                        jobState = num;
+                    }
+                }
+            }
+
+            while (in.read() != -1)
+            {
+                in.skip(Long.MAX_VALUE);
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Samples the state of the spooled jobs until they are finished. The
+ * print service does not notify apps about state changes, so the jobs
+ * get polled on a background thread. The interval starts short after
+ * each change and doubles while nothing changes, up to a max interval.
+ * The thread quits once there is no job left to watch.
+ */
+class PrintJobObserver
+{
+    // Interval in milliseconds right after a job has changed its state
+    static final long MIN_INTERVAL = 250;
+
+    // Max interval in milliseconds while no job changes its state
+    static final long MAX_INTERVAL = 5000;
+
+    // Time in milliseconds after which a job is not watched anymore
+    static final long MAX_AGE = 60 * 60 * 1000;
+
+    // Reads and records the states of the jobs
+    private final @NonNull PrintJobRegistry registry;
+
+    // The jobs to watch
+    private final List<PrintJobRegistry.Entry> entries = new ArrayList<>();
+
+    // Samples the states of the watched jobs
+    private final Runnable sampler = this::sample;
+
+    // The thread to sample on, null while there is nothing to watch
+    private @Nullable HandlerThread thread;
+
+    // Posts the samples onto the thread
+    private @Nullable Handler handler;
+
+    // The current interval in milliseconds
+    private long interval = MIN_INTERVAL;
+
+    /**
+     * Constructor
+     *
+     * @param registry Reads and records the states of the jobs.
+     */
+    PrintJobObserver (@NonNull PrintJobRegistry registry)
+    {
+        this.registry = registry;
+    }
+
+    /**
+     * Watches the job until it is finished. Starts the thread if needed
+     * and resets the interval.
+     *
+     * @param entry The entry of the spooled job.
+     */
+    synchronized void watch (@NonNull PrintJobRegistry.Entry entry)
+    {
+        entries.add(entry);
+        interval = MIN_INTERVAL;
+
+        if (thread == null)
+        {
+            thread = new HandlerThread("PrintJobObserver");
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+
+        handler.removeCallbacks(sampler);
+        handler.postDelayed(sampler, interval);
+    }
+
+    /**
+     * Stops watching all jobs and quits the thread.
+     */
+    synchronized void stop()
+    {
+        entries.clear();
+        quit();
+    }
+
+    /**
+     * Reads the state of each watched job. Finished jobs and jobs which
+     * are watched for too long get dropped. The next sample gets posted
+     * with the interval reset if a state has changed, or doubled if not.
+     */
+    private void sample()
+    {
+        List<PrintJobRegistry.Entry> watched;
+        boolean changed = false;
+
+        synchronized (this)
+        {
+            watched = new ArrayList<>(entries);
+        }
+
+        for (PrintJobRegistry.Entry entry : watched)
+        {
+            int state = entry.state;
+
+            if (registry.update(entry) != state)
+            {
+                changed = true;
+            }
+        }
+
+        synchronized (this)
+        {
+            long now = SystemClock.elapsedRealtime();
+
+            for (Iterator<PrintJobRegistry.Entry> it = entries.iterator(); it.hasNext();)
+            {
+                PrintJobRegistry.Entry entry = it.next();
+
+                if (entry.isFinished() || now - entry.spooledAt > MAX_AGE)
+                {
+                    it.remove();
+                }
+            }
+
+            if (entries.isEmpty())
+            {
+                quit();
+                return;
+            }
+
+            interval = changed ? MIN_INTERVAL : Math.min(interval * 2, MAX_INTERVAL);
+
+            if (handler != null)
+            {
+                handler.postDelayed(sampler, interval);
+            }
+        }
+    }
+
+    /**
+     * Quits the thread.
+     */
+    private void quit()
+    {
+        if (handler != null)
+        {
+            handler.removeCallbacks(sampler);
+        }
+
+        if (thread != null)
+        {
+            thread.quitSafely();
+        }
+
+        thread  = null;
+        handler = null;
+    }
+}
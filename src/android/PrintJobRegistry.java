@@ -0,0 +1,366 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.os.SystemClock;
+import android.print.PrintJob;
+import android.print.PrintJobId;
+import android.print.PrintJobInfo;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static android.print.PrintJobInfo.STATE_BLOCKED;
+import static android.print.PrintJobInfo.STATE_CANCELED;
+import static android.print.PrintJobInfo.STATE_COMPLETED;
+import static android.print.PrintJobInfo.STATE_CREATED;
+import static android.print.PrintJobInfo.STATE_FAILED;
+import static android.print.PrintJobInfo.STATE_QUEUED;
+import static android.print.PrintJobInfo.STATE_STARTED;
+
+/**
+ * Keeps track of the jobs handed over to the print service by the id of
+ * the print job returned by the service. The state of a job gets read
+ * through its own handle, so there's no need to fetch the list of all
+ * jobs and to match them by their label. Each change of state gets
+ * recorded together with the time it has been observed, and reported to
+ * the listener. Spooled jobs get watched by the observer until they are
+ * finished.
+ */
+class PrintJobRegistry
+{
+    // Max number of jobs to keep, finished ones get dropped first
+    private static final int MAX_JOBS = 32;
+
+    // Source of the entry ids
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    // The shared instance
+    private static PrintJobRegistry instance;
+
+    // Tracked jobs by their id, the oldest first
+    private final LinkedHashMap<PrintJobId, Entry> jobs = new LinkedHashMap<>();
+
+    // Samples the states of the spooled jobs
+    private final PrintJobObserver observer = new PrintJobObserver(this);
+
+    // The listener to inform about state changes
+    private @Nullable OnStateChangeListener listener;
+
+    private PrintJobRegistry() {}
+
+    /**
+     * Returns the shared instance.
+     */
+    @NonNull
+    static synchronized PrintJobRegistry getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new PrintJobRegistry();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Sets the listener to inform about state changes.
+     *
+     * @param listener The listener or null to remove it.
+     */
+    synchronized void setListener (@Nullable OnStateChangeListener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Stops watching the spooled jobs.
+     */
+    void stopObserving()
+    {
+        observer.stop();
+    }
+
+    /**
+     * Creates the entry for a job which is about to be handed over to
+     * the print service.
+     *
+     * @param name The name of the job.
+     */
+    @NonNull
+    Entry create (@NonNull String name)
+    {
+        return new Entry(name);
+    }
+
+    /**
+     * Starts tracking the print job returned by the print service and
+     * watches it until it is finished.
+     *
+     * @param entry The entry created for the job.
+     * @param job   The print job or null if the service refused it.
+     */
+    void attach (@NonNull Entry entry, @Nullable PrintJob job)
+    {
+        if (job == null)
+            return;
+
+        synchronized (this)
+        {
+            entry.job       = job;
+            entry.spooledAt = SystemClock.elapsedRealtime();
+            jobs.put(job.getId(), entry);
+            trimToSize();
+        }
+
+        update(entry);
+
+        if (!entry.isFinished())
+        {
+            observer.watch(entry);
+        }
+    }
+
+    /**
+     * Returns the entry of the print job.
+     *
+     * @param id The id of the print job.
+     *
+     * @return null if the job is not tracked (anymore).
+     */
+    @Nullable
+    synchronized Entry get (@NonNull PrintJobId id)
+    {
+        return jobs.get(id);
+    }
+
+    /**
+     * Reads the current state of the job and records it if it has
+     * changed. The listener gets informed about the change.
+     *
+     * @param entry The entry of the job.
+     *
+     * @return The current state or 0 if the job hasn't been spooled.
+     */
+    int update (@NonNull Entry entry)
+    {
+        PrintJob job      = entry.job;
+        PrintJobInfo info = job != null ? job.getInfo() : null;
+        OnStateChangeListener listener;
+        boolean changed;
+        int state;
+
+        synchronized (this)
+        {
+            changed  = info != null && entry.record(info.getState());
+            state    = entry.state;
+            listener = this.listener;
+        }
+
+        if (changed && listener != null)
+        {
+            listener.onStateChange(entry, state);
+        }
+
+        return state;
+    }
+
+    /**
+     * Returns if the job has been completed or is still on its way. Jobs
+     * which haven't been spooled count as completed.
+     *
+     * @param entry The entry of the job.
+     */
+    boolean isCompleted (@NonNull Entry entry)
+    {
+        return entry.job == null || update(entry) <= STATE_COMPLETED;
+    }
+
+    /**
+     * Returns the tracked jobs with their recorded states.
+     */
+    @NonNull
+    synchronized JSONArray getJobs()
+    {
+        JSONArray list = new JSONArray();
+
+        for (Entry entry : jobs.values())
+        {
+            list.put(entry.toJSON());
+        }
+
+        return list;
+    }
+
+    /**
+     * Drops the oldest finished jobs, or the oldest ones if none has
+     * finished, until the max number of jobs fits.
+     */
+    private void trimToSize()
+    {
+        Iterator<Entry> it = jobs.values().iterator();
+
+        while (jobs.size() > MAX_JOBS && it.hasNext())
+        {
+            if (it.next().isFinished())
+            {
+                it.remove();
+            }
+        }
+
+        it = jobs.values().iterator();
+
+        while (jobs.size() > MAX_JOBS && it.hasNext())
+        {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns the name of the state as reported to JS.
+     *
+     * @param state One of the PrintJobInfo states.
+     */
+    @NonNull
+    static String getStateName (int state)
+    {
+        switch (state)
+        {
+            case STATE_CREATED:   return "created";
+            case STATE_QUEUED:    return "queued";
+            case STATE_STARTED:   return "started";
+            case STATE_BLOCKED:   return "blocked";
+            case STATE_COMPLETED: return "completed";
+            case STATE_FAILED:    return "failed";
+            case STATE_CANCELED:  return "cancelled";
+            default:              return "unknown";
+        }
+    }
+
+    /**
+     * A job handed over to the print service and its recorded states.
+     */
+    static final class Entry
+    {
+        // The id of the entry as reported to JS
+        final int id = IDS.incrementAndGet();
+
+        // The name of the job
+        final @NonNull String name;
+
+        // The recorded states and when they have been observed
+        private final JSONArray transitions = new JSONArray();
+
+        // The handle of the print job, set once spooled
+        @Nullable PrintJob job;
+
+        // The last observed state, 0 until spooled
+        int state;
+
+        // Time in milliseconds since boot when the job has been spooled
+        long spooledAt;
+
+        /**
+         * Constructor
+         *
+         * @param name The name of the job.
+         */
+        Entry (@NonNull String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * If the job has been completed, has failed or has been cancelled.
+         */
+        boolean isFinished()
+        {
+            return state >= STATE_COMPLETED;
+        }
+
+        /**
+         * Records the state if it has changed.
+         *
+         * @param state The observed state.
+         *
+         * @return true if the state has changed.
+         */
+        boolean record (int state)
+        {
+            if (state == this.state)
+                return false;
+
+            JSONObject transition = new JSONObject();
+
+            try {
+                transition.put("state", getStateName(state));
+                transition.put("time", System.currentTimeMillis());
+            } catch (JSONException e) {
+                // ignore
+            }
+
+            this.state = state;
+            transitions.put(transition);
+
+            return true;
+        }
+
+        /**
+         * Returns the id, name, current state and all recorded states.
+         */
+        @NonNull
+        JSONObject toJSON()
+        {
+            JSONObject json = new JSONObject();
+
+            try {
+                json.put("id", id);
+                json.put("name", name);
+                json.put("state", getStateName(state));
+                json.put("transitions", transitions);
+            } catch (JSONException e) {
+                // ignore
+            }
+
+            return json;
+        }
+    }
+
+    interface OnStateChangeListener
+    {
+        /**
+         * Invoked whenever a change of state has been observed.
+         *
+         * @param entry The entry of the job.
+         * @param state The new state.
+         */
+        void onStateChange (@NonNull Entry entry, int state);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import de.appplant.cordova.plugin.printer.PrintContent.ContentType;
+
+/**
+ * Detects the type of the content by the signature within its first
+ * bytes. The signatures are compiled once, the detection itself does
+ * not allocate anything.
+ */
+final class PrintMagic
+{
+    // Number of bytes needed to detect any of the supported formats
+    static final int HEADER_SIZE = 16;
+
+    // Matches any byte within a signature
+    private static final int ANY = -1;
+
+    // Signature of PDF documents
+    private static final int[] PDF = { '%', 'P', 'D', 'F', '-' };
+
+    // Signatures of the supported image formats except HEIF
+    private static final int[][] IMAGES = {
+            // PNG
+            { 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A },
+            // JPEG
+            { 0xFF, 0xD8, 0xFF },
+            // JPEG 2000 within a JP2 container
+            { 0x00, 0x00, 0x00, 0x0C, 'j', 'P', ' ', ' ', 0x0D, 0x0A, 0x87, 0x0A },
+            // JPEG 2000 codestream
+            { 0xFF, 0x4F, 0xFF, 0x51 },
+            // GIF87a and GIF89a
+            { 'G', 'I', 'F', '8', ANY, 'a' },
+            // BMP
+            { 'B', 'M' },
+            // ICO
+            { 0x00, 0x00, 0x01, 0x00 }
+    };
+
+    // Mime types of the image formats in the order of their signatures
+    private static final String[] IMAGE_TYPES = {
+            "image/png", "image/jpeg", "image/jp2", "image/jp2",
+            "image/gif", "image/bmp", "image/x-icon"
+    };
+
+    // Box type of the ISO base media file type box
+    private static final int FTYP = fourCC("ftyp");
+
+    // Major brands of HEIF images
+    private static final int[] HEIF_BRANDS = {
+            fourCC("heic"), fourCC("heix"), fourCC("hevc"), fourCC("hevx"),
+            fourCC("heim"), fourCC("heis"), fourCC("mif1"), fourCC("msf1")
+    };
+
+    private PrintMagic() {}
+
+    /**
+     * Detects the type of the content by its first bytes.
+     *
+     * @param header The first bytes of the content.
+     * @param length The number of valid bytes within the header.
+     *
+     * @return PDF, IMAGE or UNSUPPORTED if no signature matches.
+     */
+    @NonNull
+    static ContentType detect (@NonNull byte[] header, int length)
+    {
+        if (matches(header, length, PDF))
+            return ContentType.PDF;
+
+        for (int[] signature : IMAGES)
+        {
+            if (matches(header, length, signature))
+                return ContentType.IMAGE;
+        }
+
+        if (isHeif(header, length))
+            return ContentType.IMAGE;
+
+        return ContentType.UNSUPPORTED;
+    }
+
+    /**
+     * Detects the mime type of the content by its first bytes.
+     *
+     * @param header The first bytes of the content.
+     * @param length The number of valid bytes within the header.
+     *
+     * @return null if no signature matches.
+     */
+    @Nullable
+    static String detectMimeType (@NonNull byte[] header, int length)
+    {
+        if (matches(header, length, PDF))
+            return "application/pdf";
+
+        for (int i = 0; i < IMAGES.length; i++)
+        {
+            if (matches(header, length, IMAGES[i]))
+                return IMAGE_TYPES[i];
+        }
+
+        if (isHeif(header, length))
+            return "image/heif";
+
+        return null;
+    }
+
+    /**
+     * If the header starts with the signature.
+     *
+     * @param header    The first bytes of the content.
+     * @param length    The number of valid bytes within the header.
+     * @param signature The signature to look for.
+     */
+    private static boolean matches (@NonNull byte[] header, int length,
+                                    @NonNull int[] signature)
+    {
+        if (length < signature.length)
+            return false;
+
+        for (int i = 0; i < signature.length; i++)
+        {
+            if (signature[i] != ANY && signature[i] != (header[i] & 0xFF))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * If the header starts with a file type box of a HEIF image.
+     *
+     * @param header The first bytes of the content.
+     * @param length The number of valid bytes within the header.
+     */
+    private static boolean isHeif (@NonNull byte[] header, int length)
+    {
+        if (length < 12 || readInt(header, 4) != FTYP)
+            return false;
+
+        int brand = readInt(header, 8);
+
+        for (int heif : HEIF_BRANDS)
+        {
+            if (brand == heif)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Reads a big-endian int from the header.
+     *
+     * @param header The bytes to read from.
+     * @param offset The index of the first byte.
+     */
+    private static int readInt (@NonNull byte[] header, int offset)
+    {
+        return (header[offset] & 0xFF) << 24 | (header[offset + 1] & 0xFF) << 16
+                | (header[offset + 2] & 0xFF) << 8 | (header[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Packs the four ASCII chars of a box type or brand into an int.
+     *
+     * @param code The four chars.
+     */
+    private static int fourCC (@NonNull String code)
+    {
+        return code.charAt(0) << 24 | code.charAt(1) << 16 | code.charAt(2) << 8 | code.charAt(3);
+    }
+}
@@ -24,24 +24,32 @@ package de.appplant.cordova.plugin.printer;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.print.PrintAttributes;
 import android.print.PrintDocumentAdapter;
 import android.print.PrintJob;
+import android.print.PrintRenderer;
+import android.print.PrintRenderer.OnRenderFinishCallback;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.print.PrintHelper;
-import android.webkit.CookieManager;
-import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Executor;
+
+import de.appplant.cordova.plugin.printer.PrintContent.ContentType;
 
 import static android.content.Context.PRINT_SERVICE;
 import static android.os.Build.VERSION.SDK_INT;
+import static android.print.PrintDocumentInfo.PAGE_COUNT_UNKNOWN;
 import static android.print.PrintJobInfo.STATE_COMPLETED;
 import static de.appplant.cordova.plugin.printer.PrintContent.ContentType.UNSUPPORTED;
 
@@ -50,20 +58,30 @@ import static de.appplant.cordova.plugin.printer.PrintContent.ContentType.UNSUPP
  */
 class PrintManager
 {
+    // The URL to resolve relative links of the markup against
+    private static final String BASE_URL = "file:///android_asset/www/";
+
     // The application context
     private final @NonNull Context context;
 
-    // Reference required as long as the page does load the HTML markup
-    private @Nullable WebView view;
+    // Runs the write passes of adapters which draw the content
+    private final @NonNull Executor executor;
+
+    // The print service, looked up on first use
+    private volatile android.print.PrintManager printService;
 
     /**
-     * Constructor
+     * Constructor. The instance holds no per-job state, so one instance
+     * can be shared by all threads for the lifetime of the plugin.
      *
-     * @param context The context where to look for.
+     * @param context  The context where to look for.
+     * @param executor Runs the write passes of adapters which draw the
+     *                 content, off the UI thread.
      */
-    PrintManager (@NonNull Context context)
+    PrintManager (@NonNull Context context, @NonNull Executor executor)
     {
-        this.context = context;
+        this.context  = context;
+        this.executor = executor;
     }
 
     /**
@@ -79,7 +97,9 @@ class PrintManager
 
         if (item != null)
         {
-            supported = PrintContent.getContentType(item, context) != UNSUPPORTED;
+            try (PrintSource source = PrintSource.resolve(item, context)) {
+                supported = source.getType() != UNSUPPORTED;
+            }
         }
 
         return supported;
@@ -105,6 +125,26 @@ class PrintManager
         return utis;
     }
 
+    /**
+     * Returns the metrics of the caches.
+     */
+    @NonNull
+    static JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+
+        try {
+            stats.put("bitmapCache", PrintBitmapCache.getInstance().getStats());
+            stats.put("webViewPool", PrintWebViewPool.getInstance().getStats());
+            stats.put("pdfCache", PrintPdfCache.getInstance().getStats());
+            stats.put("buffers", PrintBytes.getStats());
+        } catch (JSONException e) {
+            // ignore
+        }
+
+        return stats;
+    }
+
     /**
      * Sends the provided content to the printing controller and opens
      * them.
@@ -113,17 +153,33 @@ class PrintManager
      * @param settings Additional settings how to render the content.
      * @param callback The function to invoke once the job is done.
      */
-    @SuppressWarnings("ConstantConditions")
     void print (@Nullable String content, @NonNull JSONObject settings,
                 @NonNull WebView view, @NonNull OnPrintFinishCallback callback)
     {
-        switch (PrintContent.getContentType(content, context))
+        print(PrintSource.resolve(content, context), settings, view, callback);
+    }
+
+    /**
+     * Sends the content resolved before to the printing controller and
+     * opens them. The print job takes over the source.
+     *
+     * @param source   The resolved content or file to print.
+     * @param settings Additional settings how to render the content.
+     * @param callback The function to invoke once the job is done.
+     */
+    @SuppressWarnings("ConstantConditions")
+    void print (@NonNull PrintSource source, @NonNull JSONObject settings,
+                @NonNull WebView view, @NonNull OnPrintFinishCallback callback)
+    {
+        String content = source.getContent();
+
+        switch (source.getType())
         {
             case IMAGE:
-                printImage(content, settings, callback);
+                printImage(source, settings, callback);
                 break;
             case PDF:
-                printPdf(content, settings, callback);
+                printPdf(source, settings, callback);
                 break;
             case HTML:
                 if (content == null || content.isEmpty()) {
@@ -133,12 +189,163 @@ class PrintManager
                 }
                 break;
             case UNSUPPORTED:
-                // TODO unsupported content
+                source.close();
+                callback.onFinish(false);
+                break;
             case PLAIN:
                 printText(content, settings, callback);
         }
     }
 
+    /**
+     * Renders the provided content into a PDF file without the print
+     * dialog and spooler.
+     *
+     * @param content  The content or file to render.
+     * @param settings Additional settings how to render the content.
+     * @param view     The web view to render if there is no content.
+     * @param callback The function to invoke with the written file.
+     */
+    @SuppressWarnings("ConstantConditions")
+    void render (@Nullable String content, @NonNull JSONObject settings,
+                 @NonNull WebView view, @NonNull OnRenderFinishCallback callback)
+    {
+        PrintSource source   = PrintSource.resolve(content, context);
+        PrintOptions options = new PrintOptions(settings);
+        File file;
+
+        try {
+            file = createRenderFile();
+        } catch (IOException e) {
+            source.close();
+            callback.onFinish(null, e.getMessage());
+            return;
+        }
+
+        OnRenderFinishCallback onFinish = (File result, String error) -> {
+            source.close();
+            callback.onFinish(result, error);
+        };
+
+        switch (source.getType())
+        {
+            case IMAGE:
+                renderAdapter(new PrintImageAdapter(context, executor, options, source::open, () -> {}), options, file, onFinish);
+                break;
+            case PDF:
+                renderAdapter(createPdfAdapter(source, options, () -> {}), options, file, onFinish);
+                break;
+            case HTML:
+                if (content == null || content.isEmpty()) {
+                    ((Activity) context).runOnUiThread(() -> renderWebView(view, options, file, onFinish));
+                } else {
+                    renderContent(content, "text/html", settings, file, onFinish);
+                }
+                break;
+            case UNSUPPORTED:
+                renderAdapter(null, options, file, onFinish);
+                break;
+            case PLAIN:
+                renderContent(content, "text/plain", settings, file, onFinish);
+        }
+    }
+
+    /**
+     * Renders the markup content into a PDF file.
+     *
+     * @param content  The HTML markup to render.
+     * @param mimeType The mime type to render.
+     * @param settings Additional settings how to render the content.
+     * @param file     The file to write the document into.
+     * @param callback The function to invoke with the written file.
+     */
+    private void renderContent (@Nullable String content, @NonNull String mimeType,
+                                @NonNull JSONObject settings, @NonNull File file,
+                                @NonNull OnRenderFinishCallback callback)
+    {
+        PrintOptions options = new PrintOptions(settings);
+
+        loadContent(content, mimeType, settings, (view, release) ->
+                renderWebView(view, options, file, (File result, String error) -> {
+                    release.run();
+                    callback.onFinish(result, error);
+                }));
+    }
+
+    /**
+     * Renders the content of the specified view into a PDF file. Has to
+     * be called on the UI thread.
+     *
+     * @param view     The web view instance to render.
+     * @param options  Additional settings how to render the content.
+     * @param file     The file to write the document into.
+     * @param callback The function to invoke with the written file.
+     */
+    private void renderWebView (@NonNull WebView view,
+                                @NonNull PrintOptions options,
+                                @NonNull File file,
+                                @NonNull OnRenderFinishCallback callback)
+    {
+        PrintDocumentAdapter adapter = createPrintDocumentAdapter(view, options.getJobName());
+
+        PrintRenderer.render(adapter, options.toRenderAttributes(), file, callback);
+    }
+
+    /**
+     * Renders the content provided by the adapter into a PDF file.
+     *
+     * @param adapter  The adapter that holds the content.
+     * @param options  Additional settings how to render the content.
+     * @param file     The file to write the document into.
+     * @param callback The function to invoke with the written file.
+     */
+    private void renderAdapter (@Nullable PrintDocumentAdapter adapter,
+                                @NonNull PrintOptions options,
+                                @NonNull File file,
+                                @NonNull OnRenderFinishCallback callback)
+    {
+        if (adapter == null)
+        {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            callback.onFinish(null, "Unsupported content");
+            return;
+        }
+
+        PrintRenderer.render(adapter, options.toRenderAttributes(), file, callback);
+    }
+
+    /**
+     * Creates a new file within the cache directory to render into.
+     */
+    @NonNull
+    private File createRenderFile() throws IOException
+    {
+        File dir = new File(context.getCacheDir(), "printer");
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create " + dir);
+
+        return File.createTempFile("render", ".pdf", dir);
+    }
+
+    /**
+     * Fills the template with the data and prints the markup. The rendered
+     * document is cached if turned on by the settings, so that jobs with
+     * the same data reuse it.
+     *
+     * @param template The compiled template.
+     * @param data     The values to insert.
+     * @param settings Additional settings how to render the content.
+     * @param callback The function to invoke once the job is done.
+     */
+    void printTemplate (@NonNull PrintTemplate template, @Nullable JSONObject data,
+                        @NonNull JSONObject settings,
+                        @NonNull OnPrintFinishCallback callback)
+    {
+        printHtml(template.render(data), settings, callback);
+    }
+
     /**
      * Prints the HTML content.
      *
@@ -179,10 +386,123 @@ class PrintManager
                                @NonNull JSONObject settings,
                                @NonNull OnPrintFinishCallback callback)
     {
-        ((Activity) context).runOnUiThread(() -> {
-            view = this.createWebView(settings);
+        if (settings.optBoolean("cache", false) && PrintPdfCache.getInstance().isEnabled())
+        {
+            printCachedContent(content, mimeType, settings, callback);
+        }
+        else
+        {
+            printWebContent(content, mimeType, settings, callback);
+        }
+    }
+
+    /**
+     * Prints the markup content as rendered before with the same settings.
+     * If not cached yet the markup gets rendered into the cache first. The
+     * document stays pinned in the cache until the job is done.
+     *
+     * @param content  The HTML markup to print.
+     * @param mimeType The mime type to render.
+     * @param settings Additional settings how to render the content.
+     * @param callback The function to invoke once the job is done.
+     */
+    private void printCachedContent (@Nullable String content, @NonNull String mimeType,
+                                     @NonNull JSONObject settings,
+                                     @NonNull OnPrintFinishCallback callback)
+    {
+        PrintPdfCache cache  = PrintPdfCache.getInstance();
+        PrintOptions options = new PrintOptions(settings);
+        String key           = PrintPdfCache.getKey(content, mimeType, BASE_URL, options.toRenderAttributes(), settings);
+        File file            = cache.get(key);
+        File tmp;
+
+        OnPrintFinishCallback onFinish = new OnPrintFinishCallback() {
+            @Override
+            public void onSpool (@NonNull Runnable spool) {
+                callback.onSpool(spool);
+            }
+
+            @Override
+            public void onFinish (boolean completed) {
+                cache.release(key);
+                callback.onFinish(completed);
+            }
+        };
+
+        if (file != null)
+        {
+            printPdfFile(file, options, onFinish);
+            return;
+        }
+
+        try {
+            tmp = cache.createFile();
+        } catch (IOException e) {
+            printWebContent(content, mimeType, settings, callback);
+            return;
+        }
+
+        renderContent(content, mimeType, settings, tmp, (File result, String error) -> {
+            if (result != null) {
+                printPdfFile(cache.put(key, result), options, onFinish);
+            } else {
+                printWebContent(content, mimeType, settings, callback);
+            }
+        });
+    }
+
+    /**
+     * Prints the markup content through the print adapter of a web view.
+     *
+     * @param content  The HTML markup to print.
+     * @param mimeType The mime type to render.
+     * @param settings Additional settings how to render the content.
+     * @param callback The function to invoke once the job is done.
+     */
+    private void printWebContent (@Nullable String content, @NonNull String mimeType,
+                                  @NonNull JSONObject settings,
+                                  @NonNull OnPrintFinishCallback callback)
+    {
+        loadContent(content, mimeType, settings, (view, release) ->
+                printWebView(view, settings, new OnPrintFinishCallback() {
+                    @Override
+                    public void onSpool (@NonNull Runnable spool) {
+                        callback.onSpool(spool);
+                    }
+
+                    @Override
+                    public void onFinish (boolean completed) {
+                        release.run();
+                        callback.onFinish(completed);
+                    }
+                }));
+    }
+
+    /**
+     * Loads the markup content into a pooled web view.
+     *
+     * @param content  The HTML markup to load.
+     * @param mimeType The mime type to render.
+     * @param settings Additional settings how to render the content.
+     * @param callback The function to invoke on the UI thread once the
+     *                 content has been loaded.
+     */
+    private void loadContent (@Nullable String content, @NonNull String mimeType,
+                              @NonNull JSONObject settings,
+                              @NonNull OnLoadFinishCallback callback)
+    {
+        Activity activity     = (Activity) context;
+        PrintWebViewPool pool = PrintWebViewPool.getInstance();
+        long start            = PrintWebViewPool.now();
+
+        activity.runOnUiThread(() -> {
+            boolean warm = pool.hasIdle();
+            WebView view = pool.acquire(context, settings);
 
             view.setWebViewClient(new WebViewClient() {
+                // If the content has been loaded already
+                private boolean finished;
+
                 @Override
                 public boolean shouldOverrideUrlLoading (WebView view, String url) {
                     return false;
@@ -190,12 +510,16 @@ class PrintManager
 
                 @Override
                 public void onPageFinished (WebView view, String url) {
-                    printWebView(PrintManager.this.view, settings, callback);
-                    PrintManager.this.view = null;
+                    if (finished) return;
+
+                    finished = true;
+                    pool.recordFirstLayout(warm, PrintWebViewPool.now() - start);
+
+                    callback.onFinish(view, () -> activity.runOnUiThread(() -> pool.release(view)));
                 }
             });
 
-            view.loadDataWithBaseURL("file:///android_asset/www/", content, mimeType, "UTF-8",null);
+            view.loadDataWithBaseURL(BASE_URL, content, mimeType, "UTF-8",null);
         });
     }
 
@@ -214,117 +538,256 @@ class PrintManager
         String jobName       = options.getJobName();
 
         ((Activity) context).runOnUiThread(() -> {
-            PrintDocumentAdapter adapter;
-
-            if (SDK_INT >= 21) {
-                adapter = view.createPrintDocumentAdapter(jobName);
-            } else {
-                adapter = view.createPrintDocumentAdapter();
-            }
+            PrintJobRegistry.Entry entry = PrintJobRegistry.getInstance().create(jobName);
+            PrintDocumentAdapter adapter = createPrintDocumentAdapter(view, jobName);
+            PrintProxy proxy             = new PrintProxy(adapter, () -> callback.onFinish(isPrintJobCompleted(entry)));
 
-            PrintProxy proxy = new PrintProxy(adapter, () -> callback.onFinish(isPrintJobCompleted(jobName)));
-
-            printAdapter(proxy, options);
+            printAdapter(proxy, entry, options, callback);
         });
     }
 
     /**
      * Prints the provided PDF document.
      *
-     * @param path     The path to the file to print.
+     * @param source   The resolved document to print.
      * @param settings Additional settings how to render the content.
      * @param callback The function to invoke once the job is done.
      */
-    private void printPdf (@NonNull String path, @NonNull JSONObject settings,
+    private void printPdf (@NonNull PrintSource source,
+                           @NonNull JSONObject settings,
                            @NonNull OnPrintFinishCallback callback)
     {
-        InputStream stream    = PrintContent.open(path, context);
+        PrintOptions options         = new PrintOptions(settings);
+        PrintJobRegistry.Entry entry = PrintJobRegistry.getInstance().create(options.getJobName());
+        PrintAdapter adapter         = createPdfAdapter(source, options, () -> callback.onFinish(isPrintJobCompleted(entry)));
+
+        if (adapter == null)
+        {
+            callback.onFinish(false);
+            return;
+        }
+
+        printAdapter(adapter, entry, options, callback);
+    }
+
+    /**
+     * Prints several PDF documents and images as one document.
+     *
+     * @param contents The documents and images to print.
+     * @param types    The type of each content, either PDF or IMAGE.
+     * @param settings Additional settings how to render the content.
+     * @param callback The function to invoke once the job is done.
+     */
+    void printComposite (@NonNull String[] contents,
+                         @NonNull ContentType[] types,
+                         @NonNull JSONObject settings,
+                         @NonNull OnPrintFinishCallback callback)
+    {
+        PrintOptions options         = new PrintOptions(settings);
+        PrintJobRegistry.Entry entry = PrintJobRegistry.getInstance().create(options.getJobName());
 
-        if (stream == null) return;
+        printAdapter(new PrintCompositeAdapter(context, executor, options, contents, types,
+                () -> callback.onFinish(isPrintJobCompleted(entry))), entry, options, callback);
+    }
 
-        PrintOptions options  = new PrintOptions(settings);
-        String jobName        = options.getJobName();
-        Integer pageCount     = options.getPageCount();
-        PrintAdapter adapter  = new PrintAdapter(jobName, pageCount, stream, () -> callback.onFinish(isPrintJobCompleted(jobName)));
+    /**
+     * Prints the PDF document rendered into the file.
+     *
+     * @param file     The file to print.
+     * @param options  Additional settings how to render the content.
+     * @param callback The function to invoke once the job is done.
+     */
+    private void printPdfFile (@NonNull File file,
+                               @NonNull PrintOptions options,
+                               @NonNull OnPrintFinishCallback callback)
+    {
+        String jobName               = options.getJobName();
+        int pageCount                = options.getPageCount();
+        PrintJobRegistry.Entry entry = PrintJobRegistry.getInstance().create(jobName);
+
+        if (pageCount == PAGE_COUNT_UNKNOWN)
+        {
+            pageCount = PrintContent.getPageCount("file://" + file.getAbsolutePath(), context);
+        }
 
-        printAdapter(adapter, options);
+        printAdapter(new PrintAdapter(jobName, pageCount, file, () -> callback.onFinish(isPrintJobCompleted(entry))), entry, options, callback);
     }
 
     /**
-     * Prints the content provided by the print adapter.
+     * Creates the adapter for the provided PDF document.
+     *
+     * @param source   The resolved document.
+     * @param options  Additional settings how to render the content.
+     * @param callback The function to invoke once the job is done.
      *
-     * @param adapter The adapter that holds the content.
-     * @param options Additional settings how to render the content.
+     * @return null if the document is not accessible.
+     */
+    @Nullable
+    private PrintAdapter createPdfAdapter (@NonNull PrintSource source,
+                                           @NonNull PrintOptions options,
+                                           @NonNull PrintHelper.OnPrintFinishCallback callback)
+    {
+        String jobName = options.getJobName();
+        int pageCount  = options.getPageCount();
+        String path    = source.getContent();
+        File file      = source.getFile();
+
+        if (pageCount == PAGE_COUNT_UNKNOWN)
+        {
+            pageCount = PrintContent.getPageCount(path, context);
+        }
+
+        if (file != null)
+        {
+            source.close();
+            return new PrintAdapter(jobName, pageCount, file, callback);
+        }
+
+        InputStream stream = source.takeStream();
+
+        if (stream == null)
+            return null;
+
+        return new PrintAdapter(jobName, pageCount, stream, source::open, callback);
+    }
+
+    /**
+     * Prints the content provided by the print adapter. The print job
+     * returned by the print service gets tracked by its id.
+     *
+     * @param adapter  The adapter that holds the content.
+     * @param entry    The entry to track the job with.
+     * @param options  Additional settings how to render the content.
+     * @param callback The callback to hand over the job with.
      */
     private void printAdapter (@NonNull PrintDocumentAdapter adapter,
-                               @NonNull PrintOptions options)
+                               @NonNull PrintJobRegistry.Entry entry,
+                               @NonNull PrintOptions options,
+                               @NonNull OnPrintFinishCallback callback)
     {
         String jobName        = options.getJobName();
         PrintAttributes attrs = options.toPrintAttributes();
 
-        getPrintService().print(jobName, adapter, attrs);
+        callback.onSpool(() -> PrintJobRegistry.getInstance().attach(entry,
+                getPrintService().print(jobName, adapter, attrs)));
     }
 
     /**
      * Prints the specified image by file uri.
      *
-     * @param path     The path to the file to print.
+     * @param source   The resolved image to print.
      * @param settings Additional settings how to render the content.
      * @param callback The function to invoke once the job is done.
      */
-    private void printImage (@NonNull String path, @NonNull JSONObject settings,
+    private void printImage (@NonNull PrintSource source,
+                             @NonNull JSONObject settings,
                              @NonNull OnPrintFinishCallback callback)
     {
-        Bitmap bitmap        = PrintContent.decode(path, context);
+        PrintOptions options   = new PrintOptions(settings);
+        PrintBitmapCache cache = PrintBitmapCache.getInstance();
+        String path            = source.getContent();
+        String key             = PrintContent.getBitmapKey(path, options, context);
+        Bitmap bitmap          = key != null ? cache.get(key) : null;
 
-        if (bitmap == null) return;
+        if (bitmap == null)
+        {
+            BitmapFactory.Options opts = source.decodeBounds(options);
+
+            if (opts == null)
+            {
+                callback.onFinish(false);
+                return;
+            }
+
+            if (options.isTiled() || exceedsMemory(opts))
+            {
+                printTiledImage(source, options, callback);
+                return;
+            }
+
+            bitmap = PrintContent.decode(path, opts, context);
+
+            if (bitmap == null)
+            {
+                callback.onFinish(false);
+                return;
+            }
+
+            if (key != null)
+            {
+                cache.put(key, bitmap);
+            }
+        }
+        else
+        {
+            source.close();
+        }
 
-        PrintOptions options = new PrintOptions(settings);
         PrintHelper printer  = new PrintHelper(context);
         String jobName       = options.getJobName();
+        Bitmap image         = bitmap;
 
         options.decoratePrintHelper(printer);
 
-        printer.printBitmap(jobName, bitmap, () -> callback.onFinish(isPrintJobCompleted(jobName)));
+        callback.onSpool(() -> printer.printBitmap(jobName, image, () -> callback.onFinish(isPrintJobCompleted(jobName))));
     }
 
     /**
-     * Creates a new web view instance that can be used for printing.
+     * Prints the specified image tile by tile.
      *
-     * @param settings Additional settings about the print job.
+     * @param source   The resolved image to print.
+     * @param options  Additional settings how to render the content.
+     * @param callback The function to invoke once the job is done.
+     */
+    private void printTiledImage (@NonNull PrintSource source,
+                                  @NonNull PrintOptions options,
+                                  @NonNull OnPrintFinishCallback callback)
+    {
+        PrintJobRegistry.Entry entry = PrintJobRegistry.getInstance().create(options.getJobName());
+        PrintImageAdapter adapter    = new PrintImageAdapter(context, executor, options, source::open, () -> callback.onFinish(isPrintJobCompleted(entry)));
+
+        printAdapter(adapter, entry, options, callback);
+    }
+
+    /**
+     * If the subsampled image would take more than a quarter of the heap
+     * and its format supports decoding it region by region.
      *
-     * @return A web view instance.
+     * @param opts The prepared decode options.
      */
-    @NonNull
-    private WebView createWebView (@NonNull JSONObject settings)
+    private boolean exceedsMemory (@NonNull BitmapFactory.Options opts)
     {
-        boolean jsEnabled = settings.optBoolean("javascript", false);
-        WebView      view = new WebView(context);
-        WebSettings  spec = view.getSettings();
-        JSONObject   font = settings.optJSONObject("font");
+        long width  = opts.outWidth / opts.inSampleSize;
+        long height = opts.outHeight / opts.inSampleSize;
+        int depth   = opts.inPreferredConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+        String mime = opts.outMimeType;
 
-        spec.setDatabaseEnabled(true);
-        spec.setGeolocationEnabled(true);
-        spec.setSaveFormData(true);
-        spec.setUseWideViewPort(true);
-        spec.setJavaScriptEnabled(jsEnabled);
+        if (mime == null || !(mime.equals("image/jpeg") || mime.equals("image/png")
+                || mime.equals("image/webp") || mime.equals("image/heif")))
+            return false;
 
-        if (font != null && font.has("size"))
-        {
-            spec.setDefaultFixedFontSize(font.optInt("size", 16));
-        }
+        return width * height * depth > Runtime.getRuntime().maxMemory() / 4;
+    }
 
+    /**
+     * Creates the print adapter of the web view.
+     *
+     * @param view    The web view instance to print.
+     * @param jobName The name of the print job.
+     */
+    @NonNull
+    private PrintDocumentAdapter createPrintDocumentAdapter (@NonNull WebView view,
+                                                             @NonNull String jobName)
+    {
         if (SDK_INT >= 21)
-        {
-            spec.setMixedContentMode(WebSettings.MIXED_CONTENT_ALWAYS_ALLOW);
-            CookieManager.getInstance().setAcceptThirdPartyCookies(view, true);
-        }
+            return view.createPrintDocumentAdapter(jobName);
 
-        return view;
+        return view.createPrintDocumentAdapter();
     }
 
     /**
-     * Finds the print job by its name.
+     * Finds the print job by its name. Only used for images printed by
+     * the print helper, which does not expose the print job.
      *
      * @param jobName The name of the print job.
      *
@@ -355,16 +818,51 @@ class PrintManager
     }
 
     /**
-     * Returns the print service of the app.
+     * Returns if the tracked print job is done.
+     *
+     * @param entry The entry of the print job.
+     */
+    private boolean isPrintJobCompleted (@NonNull PrintJobRegistry.Entry entry)
+    {
+        return PrintJobRegistry.getInstance().isCompleted(entry);
+    }
+
+    /**
+     * Returns the print service of the app. The service gets looked up
+     * once and is reused afterwards.
      */
     @NonNull
     private android.print.PrintManager getPrintService()
     {
-        return (android.print.PrintManager) context.getSystemService(PRINT_SERVICE);
+        android.print.PrintManager service = printService;
+
+        if (service == null)
+        {
+            service      = (android.print.PrintManager) context.getSystemService(PRINT_SERVICE);
+            printService = service;
+        }
+
+        return service;
     }
 
     interface OnPrintFinishCallback
     {
+        /**
+         * Invoked once the job is ready to be handed over to the print
+         * service, which may be deferred until other jobs are done.
+         *
+         * @param spool Hands the job over to the print service.
+         */
+        default void onSpool (@NonNull Runnable spool)
+        {
+            spool.run();
+        }
+
         void onFinish (boolean completed);
     }
+
+    private interface OnLoadFinishCallback
+    {
+        void onFinish (@NonNull WebView view, @NonNull Runnable release);
+    }
 }
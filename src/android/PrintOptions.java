@@ -21,8 +21,12 @@
 
 package de.appplant.cordova.plugin.printer;
 
+import android.graphics.Bitmap;
 import android.print.PrintAttributes;
+import android.print.PrintAttributes.MediaSize;
+import android.print.PrintAttributes.Resolution;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.print.PrintHelper;
 
 import org.json.JSONObject;
@@ -45,6 +49,13 @@ import static android.support.v4.print.PrintHelper.SCALE_MODE_FIT;
  */
 class PrintOptions
 {
+    // Resolution used to size images if the printer is not known yet
+    private static final int DEFAULT_DPI = 300;
+
+    // Dimensions of an ISO A4 sheet in points
+    private static final double A4_WIDTH  = 595.28;
+    private static final double A4_HEIGHT = 841.89;
+
     // The print job settings
     private final @NonNull JSONObject spec;
 
@@ -83,10 +94,118 @@ class PrintOptions
         return count <= 0 ? PAGE_COUNT_UNKNOWN : count;
     }
 
+    /**
+     * Returns the size in pixels an image needs to cover the paper at the
+     * resolution of the printer. Defaults to ISO A4 at 300 dpi.
+     */
+    @NonNull int[] getPixelSize()
+    {
+        double[] size = getPaperSize();
+        int dpi       = getDpi();
+
+        return new int[] {
+            (int) Math.ceil(size[0] / 72 * dpi),
+            (int) Math.ceil(size[1] / 72 * dpi)
+        };
+    }
+
+    /**
+     * Returns the width and height of the paper in points. Defaults to
+     * ISO A4.
+     */
+    @NonNull double[] getPaperSize()
+    {
+        JSONObject paper = spec.optJSONObject("paper");
+        double width     = A4_WIDTH;
+        double height    = A4_HEIGHT;
+
+        if (paper != null)
+        {
+            width  = toPoints(paper.opt("width"), width);
+            height = toPoints(paper.opt("height"), height);
+        }
+
+        return new double[] { width, height };
+    }
+
+    /**
+     * Returns the resolution of the printer in dots per inch.
+     */
+    int getDpi()
+    {
+        return Math.max(spec.optInt("dpi", DEFAULT_DPI), 1);
+    }
+
+    /**
+     * If images should be scaled down to fit into the content area.
+     */
+    boolean isAutoFit()
+    {
+        return spec.optBoolean("autoFit", true);
+    }
+
+    /**
+     * If images should be decoded and drawn tile by tile.
+     */
+    boolean isTiled()
+    {
+        return spec.optBoolean("tiled", false);
+    }
+
+    /**
+     * Returns the pixel format to decode images with. Monochrome prints
+     * do not need the alpha channel and full color depth.
+     */
+    @NonNull Bitmap.Config getBitmapConfig()
+    {
+        return spec.optBoolean("monochrome") ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
     /**
      * Converts the options into a PrintAttributes object.
      */
     @NonNull PrintAttributes toPrintAttributes()
+    {
+        return toAttributesBuilder().build();
+    }
+
+    /**
+     * Converts the options into a PrintAttributes object which is complete
+     * enough to render the content without a printer. The media size and
+     * resolution are taken from the paper size and dpi, the content is
+     * rendered without margins.
+     */
+    @NonNull PrintAttributes toRenderAttributes()
+    {
+        PrintAttributes.Builder builder = toAttributesBuilder();
+        double[] size                   = getPaperSize();
+        int dpi                         = getDpi();
+
+        MediaSize media = new MediaSize("PrinterPlugin", "Paper",
+                (int) Math.round(size[0] / 72 * 1000), (int) Math.round(size[1] / 72 * 1000));
+
+        if (spec.optString("orientation").equals("landscape"))
+        {
+            media = media.asLandscape();
+        }
+
+        builder.setMediaSize(media);
+        builder.setResolution(new Resolution("PrinterPlugin", dpi + " dpi", dpi, dpi));
+        builder.setMinMargins(NO_MARGINS);
+
+        if (!spec.optBoolean("monochrome"))
+        {
+            builder.setColorMode(PrintAttributes.COLOR_MODE_COLOR);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Converts the options into a builder for PrintAttributes objects.
+     */
+    @NonNull
+    private PrintAttributes.Builder toAttributesBuilder()
     {
         PrintAttributes.Builder builder = new PrintAttributes.Builder();
         Object margin                   = spec.opt("margin");
@@ -134,7 +253,7 @@ class PrintOptions
             }
         }
 
-        return builder.build();
+        return builder;
     }
 
     /**
@@ -166,7 +285,7 @@ class PrintOptions
             }
         }
 
-        if (spec.optBoolean("autoFit", true))
+        if (isAutoFit())
         {
             printer.setScaleMode(SCALE_MODE_FIT);
         }
@@ -175,4 +294,41 @@ class PrintOptions
             printer.setScaleMode(SCALE_MODE_FILL);
         }
     }
+
+    /**
+     * Converts the unit value into points.
+     *
+     * @param value    Either a number of points or a string like 2in.
+     * @param fallback The value to use if its not convertible.
+     */
+    private static double toPoints (@Nullable Object value, double fallback)
+    {
+        if (value instanceof Number)
+            return ((Number) value).doubleValue();
+
+        if (!(value instanceof String))
+            return fallback;
+
+        String unit   = (String) value;
+        double factor = 1;
+
+        if (unit.endsWith("in")) {
+            factor = 72;
+        } else if (unit.endsWith("cm")) {
+            factor = 72 / 2.54;
+        } else if (unit.endsWith("mm")) {
+            factor = 72 / 25.4;
+        }
+
+        if (!unit.isEmpty() && Character.isLetter(unit.charAt(unit.length() - 1)))
+        {
+            unit = unit.substring(0, unit.length() - 2);
+        }
+
+        try {
+            return Double.parseDouble(unit.trim()) * factor;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
 }
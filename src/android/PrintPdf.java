@@ -0,0 +1,1316 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Minimal random access reader for the cross-reference table, the trailer
+ * and the page tree of a PDF document. Only the headers of the xref
+ * subsections get read upfront, entries and objects are looked up on
+ * demand by seeking to their offsets.
+ *
+ * Documents which use cross-reference streams or encryption are rejected
+ * with an IOException, callers are expected to fall back to treat them as
+ * opaque data.
+ */
+class PrintPdf
+{
+    // Size of the blocks read from the input
+    private static final int BLOCK_SIZE = 8 * 1024;
+
+    // Number of bytes at the end of the file to look for startxref
+    private static final int TAIL_SIZE = 1024;
+
+    // Max depth of the page tree
+    private static final int MAX_DEPTH = 64;
+
+    // Attributes a page inherits from its parent nodes
+    private static final String[] INHERITABLE = { "Resources", "MediaBox", "CropBox", "Rotate" };
+
+    // The document content
+    private final @NonNull Input input;
+
+    // The subsections of all cross-reference tables, newest first
+    private final @NonNull List<Section> sections = new ArrayList<>();
+
+    // Already looked up entries by object number
+    private final @NonNull Map<Integer, Entry> entries = new HashMap<>();
+
+    // The most recent trailer dictionary
+    private final @NonNull Map<String, Object> trailer;
+
+    // Currently loaded block of the input
+    private final byte[] block = new byte[BLOCK_SIZE];
+
+    // Position and length of the loaded block
+    private long blockPos = -1;
+    private int blockLen  = 0;
+
+    /**
+     * Reads the cross-reference table and the trailer of the document.
+     *
+     * @param input The document content.
+     *
+     * @throws IOException If the document is malformed or not supported.
+     */
+    PrintPdf (@NonNull Input input) throws IOException
+    {
+        this.input   = input;
+        this.trailer = readXref(findStartXref());
+
+        if (trailer.containsKey("Encrypt"))
+            throw new IOException("Encrypted documents are not supported");
+    }
+
+    /**
+     * Returns the number of pages as stated by the root of the page tree.
+     *
+     * @throws IOException If the page tree is malformed.
+     */
+    int getPageCount() throws IOException
+    {
+        Map<String, Object> root = getDict(getCatalog().get("Pages"));
+
+        if (root == null)
+            throw new IOException("Missing page tree");
+
+        return toInt(resolve(root.get("Count")));
+    }
+
+    /**
+     * Returns all pages in document order. Inheritable attributes of the
+     * parent nodes are copied into the dictionaries of the pages.
+     *
+     * @throws IOException If the page tree is malformed.
+     */
+    @NonNull
+    List<Page> getPages() throws IOException
+    {
+        List<Page> pages = new ArrayList<>();
+        Object root      = getCatalog().get("Pages");
+
+        if (!(root instanceof Ref))
+            throw new IOException("Missing page tree");
+
+        collectPages((Ref) root, new LinkedHashMap<>(), pages, new HashSet<>(), 0);
+
+        return pages;
+    }
+
+    /**
+     * Returns the document catalog.
+     *
+     * @throws IOException If the catalog is missing.
+     */
+    @NonNull
+    Map<String, Object> getCatalog() throws IOException
+    {
+        Map<String, Object> catalog = getDict(trailer.get("Root"));
+
+        if (catalog == null)
+            throw new IOException("Missing document catalog");
+
+        return catalog;
+    }
+
+    /**
+     * Returns the version of the header like 1.4.
+     */
+    @NonNull
+    String getVersion() throws IOException
+    {
+        byte[] header = new byte[8];
+        int len       = input.read(0, header, 0, header.length);
+        String text   = new String(header, 0, Math.max(len, 0), "ISO-8859-1");
+
+        return text.startsWith("%PDF-") ? text.substring(5).trim() : "1.4";
+    }
+
+    /**
+     * Returns the highest object number plus one.
+     */
+    int getSize()
+    {
+        int size = toInt(trailer.get("Size"), 0);
+
+        for (Section section : sections)
+        {
+            size = Math.max(size, section.first + section.count);
+        }
+
+        return size;
+    }
+
+    /**
+     * Returns the generation number of the object.
+     *
+     * @param num The object number.
+     */
+    int getGeneration (int num) throws IOException
+    {
+        Entry entry = getEntry(num);
+
+        return entry != null ? entry.gen : 0;
+    }
+
+    /**
+     * If the object is in use.
+     *
+     * @param num The object number.
+     */
+    boolean hasObject (int num) throws IOException
+    {
+        Entry entry = getEntry(num);
+
+        return entry != null && entry.offset > 0;
+    }
+
+    /**
+     * Returns the document content.
+     */
+    @NonNull
+    Input getInput()
+    {
+        return input;
+    }
+
+    /**
+     * Parses the indirect object. For streams only the dictionary is
+     * returned.
+     *
+     * @param num The object number.
+     *
+     * @return The parsed value or null if the object is not in use.
+     *
+     * @throws IOException If the object is malformed.
+     */
+    @Nullable
+    Object getObject (int num) throws IOException
+    {
+        if (!hasObject(num))
+            return null;
+
+        Cursor cursor = new Cursor(getEntry(num).offset);
+
+        readObjectHeader(cursor, num);
+
+        return parse(cursor);
+    }
+
+    /**
+     * Returns the byte range of the indirect object from its header
+     * up to and including the endobj keyword.
+     *
+     * @param num The object number.
+     *
+     * @return An array with the start and end offset.
+     *
+     * @throws IOException If the object is malformed.
+     */
+    @NonNull
+    long[] getObjectSpan (int num) throws IOException
+    {
+        if (!hasObject(num))
+            throw new IOException("Object " + num + " is not in use");
+
+        long start    = getEntry(num).offset;
+        Cursor cursor = new Cursor(start);
+        Object value;
+        long end;
+
+        readObjectHeader(cursor, num);
+        value = parse(cursor);
+        skipSpace(cursor);
+
+        if (value instanceof Map && startsWith(cursor.pos, "stream"))
+        {
+            long data = cursor.pos + 6;
+            Object length;
+
+            if (byteAt(data) == '\r') data++;
+            if (byteAt(data) == '\n') data++;
+
+            length = resolve(((Map) value).get("Length"));
+            end    = indexOf("endobj", length != null ? data + toInt(length) : data);
+        }
+        else
+        {
+            end = indexOf("endobj", cursor.pos);
+        }
+
+        if (end == -1)
+            throw new IOException("Missing endobj for object " + num);
+
+        return new long[]{ start, end + 6 };
+    }
+
+    /**
+     * Returns the offset of the stream keyword of the indirect object.
+     *
+     * @param num The object number.
+     *
+     * @return The offset or -1 if the object is not a stream.
+     *
+     * @throws IOException If the object is malformed.
+     */
+    long getStreamOffset (int num) throws IOException
+    {
+        if (!hasObject(num))
+            throw new IOException("Object " + num + " is not in use");
+
+        Cursor cursor = new Cursor(getEntry(num).offset);
+        Object value;
+
+        readObjectHeader(cursor, num);
+        value = parse(cursor);
+        skipSpace(cursor);
+
+        return value instanceof Map && startsWith(cursor.pos, "stream") ? cursor.pos : -1;
+    }
+
+    /**
+     * Follows the value if its a reference to an indirect object.
+     *
+     * @param value The value to resolve.
+     *
+     * @return The direct value.
+     */
+    @Nullable
+    Object resolve (@Nullable Object value) throws IOException
+    {
+        return value instanceof Ref ? getObject(((Ref) value).num) : value;
+    }
+
+    /**
+     * Resolves the value as a dictionary.
+     *
+     * @param value The value to resolve.
+     *
+     * @return The dictionary or null if its something else.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    Map<String, Object> getDict (@Nullable Object value) throws IOException
+    {
+        Object obj = resolve(value);
+
+        return obj instanceof Map ? (Map<String, Object>) obj : null;
+    }
+
+    /**
+     * Walks down the page tree and collects all leafs.
+     *
+     * @param ref       The reference to the node.
+     * @param inherited The attributes inherited from the parents.
+     * @param pages     The list to add the pages to.
+     * @param visited   The already visited nodes.
+     * @param depth     The current depth.
+     */
+    private void collectPages (@NonNull Ref ref,
+                               @NonNull Map<String, Object> inherited,
+                               @NonNull List<Page> pages,
+                               @NonNull Set<Ref> visited, int depth)
+            throws IOException
+    {
+        Map<String, Object> node = getDict(ref);
+
+        if (node == null || depth > MAX_DEPTH || !visited.add(ref))
+            throw new IOException("Malformed page tree");
+
+        Object kids = resolve(node.get("Kids"));
+
+        if (!(kids instanceof List))
+        {
+            Map<String, Object> page = new LinkedHashMap<>(node);
+
+            for (Map.Entry<String, Object> attr : inherited.entrySet())
+            {
+                if (!page.containsKey(attr.getKey()))
+                {
+                    page.put(attr.getKey(), attr.getValue());
+                }
+            }
+
+            pages.add(new Page(ref, page));
+            return;
+        }
+
+        Map<String, Object> attrs = new LinkedHashMap<>(inherited);
+
+        for (String key : INHERITABLE)
+        {
+            if (node.containsKey(key))
+            {
+                attrs.put(key, node.get(key));
+            }
+        }
+
+        for (Object kid : (List) kids)
+        {
+            if (kid instanceof Ref)
+            {
+                collectPages((Ref) kid, attrs, pages, visited, depth + 1);
+            }
+        }
+    }
+
+    /**
+     * Finds the offset of the last cross-reference section.
+     */
+    private long findStartXref() throws IOException
+    {
+        long size  = input.size();
+        long start = Math.max(0, size - TAIL_SIZE);
+        long pos   = -1;
+
+        for (long i = size - 9; i >= start; i--)
+        {
+            if (startsWith(i, "startxref"))
+            {
+                pos = i;
+                break;
+            }
+        }
+
+        if (pos == -1)
+            throw new IOException("Missing startxref");
+
+        Cursor cursor = new Cursor(pos + 9);
+
+        skipSpace(cursor);
+
+        return toLong(readToken(cursor));
+    }
+
+    /**
+     * Reads the cross-reference section and all of its predecessors.
+     *
+     * @param offset The offset of the most recent section.
+     *
+     * @return The most recent trailer dictionary.
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> readXref (long offset) throws IOException
+    {
+        Map<String, Object> newest = null;
+        Set<Long> visited          = new HashSet<>();
+
+        while (offset >= 0 && visited.add(offset))
+        {
+            Cursor cursor = new Cursor(offset);
+
+            skipSpace(cursor);
+
+            if (!"xref".equals(readToken(cursor)))
+                throw new IOException("Cross-reference streams are not supported");
+
+            Object dict = readXrefSection(cursor);
+
+            if (!(dict instanceof Map))
+                throw new IOException("Missing trailer");
+
+            Map<String, Object> trailer = (Map<String, Object>) dict;
+
+            if (trailer.containsKey("XRefStm"))
+                throw new IOException("Cross-reference streams are not supported");
+
+            if (newest == null)
+            {
+                newest = trailer;
+            }
+
+            offset = trailer.containsKey("Prev") ? toLong(trailer.get("Prev")) : -1;
+        }
+
+        if (newest == null)
+            throw new IOException("Missing trailer");
+
+        return newest;
+    }
+
+    /**
+     * Reads the headers of the subsections of a cross-reference table.
+     * The entries itself are skipped as they have a fixed width.
+     *
+     * @param cursor Positioned after the xref keyword.
+     *
+     * @return The trailer dictionary that follows the table.
+     */
+    @Nullable
+    private Object readXrefSection (@NonNull Cursor cursor) throws IOException
+    {
+        while (true)
+        {
+            skipSpace(cursor);
+
+            String token = readToken(cursor);
+
+            if (token.equals("trailer"))
+                return parse(cursor);
+
+            int first = toInt(token);
+            int count = toInt(readToken(skipSpace(cursor)));
+            int width = 18;
+
+            skipSpace(cursor);
+
+            while (width < 20 && isSpace(byteAt(cursor.pos + width)))
+            {
+                width++;
+            }
+
+            sections.add(new Section(first, count, cursor.pos, width));
+
+            cursor.pos += (long) count * width;
+        }
+    }
+
+    /**
+     * Looks up the cross-reference entry of the object.
+     *
+     * @param num The object number.
+     *
+     * @return null if the object is not listed.
+     */
+    @Nullable
+    private Entry getEntry (int num) throws IOException
+    {
+        if (entries.containsKey(num))
+            return entries.get(num);
+
+        Entry entry = null;
+
+        for (Section section : sections)
+        {
+            if (num < section.first || num >= section.first + section.count)
+                continue;
+
+            Cursor cursor = new Cursor(section.pos + (long) (num - section.first) * section.width);
+            long offset   = toLong(readToken(cursor));
+            int gen       = toInt(readToken(skipSpace(cursor)));
+            boolean used  = readToken(skipSpace(cursor)).equals("n");
+
+            entry = new Entry(used ? offset : 0, gen);
+            break;
+        }
+
+        entries.put(num, entry);
+
+        return entry;
+    }
+
+    /**
+     * Reads and validates the "num gen obj" header of an indirect object.
+     *
+     * @param cursor Positioned at the start of the object.
+     * @param num    The expected object number.
+     */
+    private void readObjectHeader (@NonNull Cursor cursor, int num)
+            throws IOException
+    {
+        skipSpace(cursor);
+
+        if (toInt(readToken(cursor)) != num)
+            throw new IOException("Broken offset for object " + num);
+
+        readToken(skipSpace(cursor));
+
+        if (!"obj".equals(readToken(skipSpace(cursor))))
+            throw new IOException("Broken header for object " + num);
+    }
+
+    /**
+     * Parses the next direct value. Dictionaries become maps keyed by
+     * the name without its slash, arrays become lists and references
+     * become Ref instances. Everything else is kept as its raw text.
+     *
+     * @param cursor The position to parse from.
+     */
+    @NonNull
+    private Object parse (@NonNull Cursor cursor) throws IOException
+    {
+        skipSpace(cursor);
+
+        int b = byteAt(cursor.pos);
+
+        switch (b)
+        {
+            case -1:
+                throw new IOException("Unexpected end of document");
+            case '<':
+                if (byteAt(cursor.pos + 1) == '<')
+                {
+                    cursor.pos += 2;
+                    return parseDict(cursor);
+                }
+                return readUntil(cursor, '>');
+            case '[':
+                cursor.pos++;
+                return parseArray(cursor);
+            case '(':
+                return readLiteral(cursor);
+            case '/':
+                return readName(cursor);
+            default:
+                return parseNumberOrRef(cursor);
+        }
+    }
+
+    /**
+     * Parses the entries of a dictionary.
+     *
+     * @param cursor Positioned after the opening brackets.
+     */
+    @NonNull
+    private Map<String, Object> parseDict (@NonNull Cursor cursor)
+            throws IOException
+    {
+        Map<String, Object> dict = new LinkedHashMap<>();
+
+        while (true)
+        {
+            skipSpace(cursor);
+
+            if (byteAt(cursor.pos) == '>' && byteAt(cursor.pos + 1) == '>')
+            {
+                cursor.pos += 2;
+                return dict;
+            }
+
+            if (byteAt(cursor.pos) != '/')
+                throw new IOException("Malformed dictionary at " + cursor.pos);
+
+            String key = readName(cursor).substring(1);
+
+            dict.put(key, parse(cursor));
+        }
+    }
+
+    /**
+     * Parses the elements of an array.
+     *
+     * @param cursor Positioned after the opening bracket.
+     */
+    @NonNull
+    private List<Object> parseArray (@NonNull Cursor cursor) throws IOException
+    {
+        List<Object> list = new ArrayList<>();
+
+        while (true)
+        {
+            skipSpace(cursor);
+
+            if (byteAt(cursor.pos) == ']')
+            {
+                cursor.pos++;
+                return list;
+            }
+
+            list.add(parse(cursor));
+        }
+    }
+
+    /**
+     * Parses a keyword or number which might be the start of a reference.
+     *
+     * @param cursor The position to parse from.
+     */
+    @NonNull
+    private Object parseNumberOrRef (@NonNull Cursor cursor) throws IOException
+    {
+        String token = readToken(cursor);
+
+        if (token.isEmpty())
+            throw new IOException("Unexpected delimiter at " + cursor.pos);
+
+        if (!isInteger(token))
+            return token;
+
+        long mark  = cursor.pos;
+        String gen = readToken(skipSpace(cursor));
+
+        if (isInteger(gen) && readToken(skipSpace(cursor)).equals("R"))
+            return new Ref(toInt(token), toInt(gen));
+
+        cursor.pos = mark;
+
+        return token;
+    }
+
+    /**
+     * Reads a sequence of regular characters.
+     *
+     * @param cursor The position to read from.
+     */
+    @NonNull
+    private String readToken (@NonNull Cursor cursor) throws IOException
+    {
+        long start = cursor.pos;
+        int b;
+
+        while ((b = byteAt(cursor.pos)) != -1 && !isSpace(b) && !isDelimiter(b))
+        {
+            cursor.pos++;
+        }
+
+        return text(start, cursor.pos);
+    }
+
+    /**
+     * Reads a name including its leading slash.
+     *
+     * @param cursor Positioned at the slash.
+     */
+    @NonNull
+    private String readName (@NonNull Cursor cursor) throws IOException
+    {
+        long start = cursor.pos++;
+
+        readToken(cursor);
+
+        return text(start, cursor.pos);
+    }
+
+    /**
+     * Reads a literal string including its parentheses.
+     *
+     * @param cursor Positioned at the opening parenthesis.
+     */
+    @NonNull
+    private String readLiteral (@NonNull Cursor cursor) throws IOException
+    {
+        long start = cursor.pos++;
+        int depth  = 1;
+        int b;
+
+        while (depth > 0)
+        {
+            b = byteAt(cursor.pos++);
+
+            if (b == -1)
+                throw new IOException("Unterminated string at " + start);
+
+            if (b == '\\') {
+                cursor.pos++;
+            } else if (b == '(') {
+                depth++;
+            } else if (b == ')') {
+                depth--;
+            }
+        }
+
+        return text(start, cursor.pos);
+    }
+
+    /**
+     * Reads everything up to and including the terminator.
+     *
+     * @param cursor     The position to read from.
+     * @param terminator The last character to read.
+     */
+    @NonNull
+    private String readUntil (@NonNull Cursor cursor, int terminator)
+            throws IOException
+    {
+        long start = cursor.pos;
+        int b;
+
+        do {
+            b = byteAt(cursor.pos++);
+
+            if (b == -1)
+                throw new IOException("Unterminated token at " + start);
+        } while (b != terminator);
+
+        return text(start, cursor.pos);
+    }
+
+    /**
+     * Skips white-space and comments.
+     *
+     * @param cursor The position to move.
+     *
+     * @return The cursor for chaining.
+     */
+    @NonNull
+    private Cursor skipSpace (@NonNull Cursor cursor) throws IOException
+    {
+        int b;
+
+        while ((b = byteAt(cursor.pos)) != -1)
+        {
+            if (b == '%')
+            {
+                while (b != -1 && b != '\r' && b != '\n')
+                {
+                    b = byteAt(++cursor.pos);
+                }
+            }
+            else if (isSpace(b))
+            {
+                cursor.pos++;
+            }
+            else break;
+        }
+
+        return cursor;
+    }
+
+    /**
+     * Finds the next occurrence of the keyword.
+     *
+     * @param keyword The keyword to look for.
+     * @param from    The offset where to start.
+     *
+     * @return The offset or -1 if not found.
+     */
+    private long indexOf (@NonNull String keyword, long from) throws IOException
+    {
+        long size = input.size();
+
+        for (long i = from; i < size; i++)
+        {
+            if (startsWith(i, keyword))
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * If the bytes at the offset match the keyword.
+     *
+     * @param pos     The offset to compare.
+     * @param keyword The expected characters.
+     */
+    private boolean startsWith (long pos, @NonNull String keyword)
+            throws IOException
+    {
+        for (int i = 0; i < keyword.length(); i++)
+        {
+            if (byteAt(pos + i) != keyword.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the bytes of the range as a string, one char per byte.
+     *
+     * @param start The offset of the first byte.
+     * @param end   The offset after the last byte.
+     */
+    @NonNull
+    private String text (long start, long end) throws IOException
+    {
+        StringBuilder sb = new StringBuilder((int) (end - start));
+
+        for (long i = start; i < end; i++)
+        {
+            sb.append((char) byteAt(i));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Returns the byte at the offset or -1 behind the end.
+     *
+     * @param pos The offset to read.
+     */
+    private int byteAt (long pos) throws IOException
+    {
+        if (pos < blockPos || pos >= blockPos + blockLen)
+        {
+            if (pos < 0 || pos >= input.size())
+                return -1;
+
+            blockPos = pos - pos % BLOCK_SIZE;
+            blockLen = Math.max(input.read(blockPos, block, 0, BLOCK_SIZE), 0);
+
+            if (pos >= blockPos + blockLen)
+                return -1;
+        }
+
+        return block[(int) (pos - blockPos)] & 0xFF;
+    }
+
+    /**
+     * Converts the raw value into an int.
+     *
+     * @param value The raw number.
+     */
+    private static int toInt (@Nullable Object value) throws IOException
+    {
+        return (int) toLong(value);
+    }
+
+    /**
+     * Converts the raw value into an int.
+     *
+     * @param value    The raw number.
+     * @param fallback The value to use if its not a number.
+     */
+    private static int toInt (@Nullable Object value, int fallback)
+    {
+        try {
+            return toInt(value);
+        } catch (IOException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Converts the raw value into a long.
+     *
+     * @param value The raw number.
+     */
+    private static long toLong (@Nullable Object value) throws IOException
+    {
+        try {
+            return Long.parseLong(String.valueOf(value));
+        } catch (NumberFormatException e) {
+            throw new IOException("Not a number: " + value);
+        }
+    }
+
+    /**
+     * If the token is an unsigned integer.
+     *
+     * @param token The token to check.
+     */
+    private static boolean isInteger (@NonNull String token)
+    {
+        if (token.isEmpty())
+            return false;
+
+        for (int i = 0; i < token.length(); i++)
+        {
+            if (token.charAt(i) < '0' || token.charAt(i) > '9')
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * If the byte is a white-space character.
+     */
+    private static boolean isSpace (int b)
+    {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f' || b == 0;
+    }
+
+    /**
+     * If the byte is a delimiter character.
+     */
+    private static boolean isDelimiter (int b)
+    {
+        return b == '(' || b == ')' || b == '<' || b == '>' || b == '['
+                || b == ']' || b == '{' || b == '}' || b == '/' || b == '%';
+    }
+
+    /**
+     * Read position within the document.
+     */
+    private static final class Cursor
+    {
+        long pos;
+
+        Cursor (long pos)
+        {
+            this.pos = pos;
+        }
+    }
+
+    /**
+     * Subsection of a cross-reference table.
+     */
+    private static final class Section
+    {
+        final int first;
+        final int count;
+        final long pos;
+        final int width;
+
+        Section (int first, int count, long pos, int width)
+        {
+            this.first = first;
+            this.count = count;
+            this.pos   = pos;
+            this.width = width;
+        }
+    }
+
+    /**
+     * Entry of a cross-reference table, the offset is 0 for free objects.
+     */
+    private static final class Entry
+    {
+        final long offset;
+        final int gen;
+
+        Entry (long offset, int gen)
+        {
+            this.offset = offset;
+            this.gen    = gen;
+        }
+    }
+
+    /**
+     * Reference to an indirect object.
+     */
+    static final class Ref
+    {
+        final int num;
+        final int gen;
+
+        Ref (int num, int gen)
+        {
+            this.num = num;
+            this.gen = gen;
+        }
+
+        @Override
+        public boolean equals (Object obj)
+        {
+            return obj instanceof Ref && ((Ref) obj).num == num && ((Ref) obj).gen == gen;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return num * 31 + gen;
+        }
+
+        @Override
+        public String toString()
+        {
+            return num + " " + gen + " R";
+        }
+    }
+
+    /**
+     * Leaf of the page tree with its inherited attributes.
+     */
+    static final class Page
+    {
+        final @NonNull Ref ref;
+        final @NonNull Map<String, Object> dict;
+
+        Page (@NonNull Ref ref, @NonNull Map<String, Object> dict)
+        {
+            this.ref  = ref;
+            this.dict = dict;
+        }
+    }
+
+    /**
+     * Random access to the bytes of a document.
+     */
+    static abstract class Input implements Closeable
+    {
+        /**
+         * Returns the number of bytes.
+         */
+        abstract long size() throws IOException;
+
+        /**
+         * Reads up to len bytes at the offset into the buffer.
+         *
+         * @return The number of bytes read or -1 behind the end.
+         */
+        abstract int read (long pos, @NonNull byte[] buf, int off, int len)
+                throws IOException;
+
+        /**
+         * Writes the byte range into the channel.
+         *
+         * @param pos    The offset of the first byte.
+         * @param count  The number of bytes to write.
+         * @param target The channel to write into.
+         */
+        void transferTo (long pos, long count, @NonNull WritableByteChannel target)
+                throws IOException
+        {
+            byte[] buf = new byte[(int) Math.min(count, BLOCK_SIZE)];
+            int len;
+
+            while (count > 0)
+            {
+                len = read(pos, buf, 0, (int) Math.min(count, buf.length));
+
+                if (len <= 0)
+                    throw new IOException("Unexpected end of document");
+
+                ByteBuffer data = ByteBuffer.wrap(buf, 0, len);
+
+                while (data.hasRemaining())
+                {
+                    target.write(data);
+                }
+
+                pos   += len;
+                count -= len;
+            }
+        }
+    }
+
+    /**
+     * Document content backed by a region of a file channel.
+     */
+    static final class FileInput extends Input
+    {
+        // The channel to read from
+        private final @NonNull FileChannel channel;
+
+        // Offset and length of the region
+        private final long start;
+        private final long length;
+
+        /**
+         * Constructor for the whole file.
+         *
+         * @param channel The channel to read from.
+         */
+        FileInput (@NonNull FileChannel channel) throws IOException
+        {
+            this(channel, 0, channel.size());
+        }
+
+        /**
+         * Constructor for a region of the file like an uncompressed asset.
+         *
+         * @param channel The channel to read from.
+         * @param start   The offset of the region.
+         * @param length  The length of the region.
+         */
+        FileInput (@NonNull FileChannel channel, long start, long length)
+        {
+            this.channel = channel;
+            this.start   = start;
+            this.length  = length;
+        }
+
+        @Override
+        long size()
+        {
+            return length;
+        }
+
+        @Override
+        int read (long pos, @NonNull byte[] buf, int off, int len)
+                throws IOException
+        {
+            if (pos >= length)
+                return -1;
+
+            len = (int) Math.min(len, length - pos);
+
+            return channel.read(ByteBuffer.wrap(buf, off, len), start + pos);
+        }
+
+        @Override
+        void transferTo (long pos, long count, @NonNull WritableByteChannel target)
+                throws IOException
+        {
+            long sent;
+
+            if (pos + count > length)
+                throw new IOException("Unexpected end of document");
+
+            while (count > 0)
+            {
+                sent = channel.transferTo(start + pos, count, target);
+
+                if (sent <= 0)
+                    throw new IOException("Unexpected end of document");
+
+                pos   += sent;
+                count -= sent;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            PrintIO.close(channel);
+        }
+    }
+
+    /**
+     * Document content backed by a byte array.
+     */
+    static final class ByteInput extends Input
+    {
+        // The content
+        private final @NonNull byte[] bytes;
+
+        /**
+         * Constructor
+         *
+         * @param bytes The content.
+         */
+        ByteInput (@NonNull byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        @Override
+        long size()
+        {
+            return bytes.length;
+        }
+
+        @Override
+        int read (long pos, @NonNull byte[] buf, int off, int len)
+        {
+            if (pos >= bytes.length)
+                return -1;
+
+            len = (int) Math.min(len, bytes.length - pos);
+            System.arraycopy(bytes, (int) pos, buf, off, len);
+
+            return len;
+        }
+
+        @Override
+        void transferTo (long pos, long count, @NonNull WritableByteChannel target)
+                throws IOException
+        {
+            if (pos + count > bytes.length)
+                throw new IOException("Unexpected end of document");
+
+            ByteBuffer data = ByteBuffer.wrap(bytes, (int) pos, (int) count);
+
+            while (data.hasRemaining())
+            {
+                target.write(data);
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            // nothing to release
+        }
+    }
+
+    /**
+     * Document content backed by a base64 encoded string. Only the
+     * quadruples of the requested bytes get decoded.
+     */
+    static final class Base64Input extends Input
+    {
+        // The encoded content
+        private final @NonNull String data;
+
+        // Index of the first encoded char
+        private final int offset;
+
+        // Number of decoded bytes
+        private final long length;
+
+        /**
+         * Constructor
+         *
+         * @param data   The string which contains the encoded content.
+         * @param offset The index of the first encoded char.
+         *
+         * @throws IOException If the data contains line breaks or other
+         *                     chars which would break random access.
+         */
+        Base64Input (@NonNull String data, int offset) throws IOException
+        {
+            int end = data.length();
+
+            for (int i = offset; i < end; i++)
+            {
+                char c = data.charAt(i);
+
+                if (c <= ' ')
+                    throw new IOException("Base64 data must not contain white-space");
+            }
+
+            this.data   = data;
+            this.offset = offset;
+
+            while (end > offset && data.charAt(end - 1) == '=')
+            {
+                end--;
+            }
+
+            this.length = (long) (end - offset) * 3 / 4;
+        }
+
+        @Override
+        long size()
+        {
+            return length;
+        }
+
+        @Override
+        int read (long pos, @NonNull byte[] buf, int off, int len)
+                throws IOException
+        {
+            if (pos >= length)
+                return -1;
+
+            len = (int) Math.min(len, length - pos);
+
+            long quad          = pos / 3;
+            int from           = offset + (int) (quad * 4);
+            int to             = (int) Math.min(offset + (pos + len + 2) / 3 * 4, data.length());
+            int skip           = (int) (pos - quad * 3);
+            InputStream stream = new PrintBase64Stream(data, from, to);
+
+            if (stream.skip(skip) != skip)
+                return -1;
+
+            return stream.read(buf, off, len);
+        }
+
+        @Override
+        public void close()
+        {
+            // nothing to release
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.print.PrintAttributes;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk cache of PDF documents rendered from markup, keyed by the hash of
+ * the markup and everything else which affects the rendering. Documents
+ * expire after a while and the least recently used ones get deleted
+ * once the cache exceeds its max size. Documents handed out by get and
+ * put stay pinned until released, so that their files don't get deleted
+ * while a print job still reads them.
+ */
+class PrintPdfCache
+{
+    // Default max size in megabytes
+    static final int DEFAULT_MAX_SIZE = 20;
+
+    // Default time in seconds after which documents expire
+    static final int DEFAULT_TTL = 24 * 60 * 60;
+
+    // Size of the chunks the texts get hashed in
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    // Hex digits to encode the hash with
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // The shared instance
+    private static PrintPdfCache instance;
+
+    // Cached documents by their key, the least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // The directory of the cached documents, null if disabled
+    private @Nullable File dir;
+
+    // Max size in bytes
+    private long maxSize = DEFAULT_MAX_SIZE * 1024L * 1024L;
+
+    // Time in milliseconds after which documents expire
+    private long ttl = DEFAULT_TTL * 1000L;
+
+    // Number of print jobs using the document by its key
+    private final HashMap<String, Integer> pins = new HashMap<>();
+
+    // Total size of all cached documents in bytes
+    private long size;
+
+    // Counters reported by getStats
+    private int hitCount;
+    private int missCount;
+    private int evictionCount;
+
+    private PrintPdfCache() {}
+
+    /**
+     * Returns the shared instance.
+     */
+    @NonNull
+    static synchronized PrintPdfCache getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new PrintPdfCache();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Sets up the cache within the directory and picks up the documents
+     * cached by previous sessions.
+     *
+     * @param dir     The directory for the cached documents.
+     * @param maxSize Max size in megabytes, 0 to disable the cache.
+     * @param ttl     Time in seconds after which documents expire.
+     */
+    synchronized void configure (@NonNull File dir, int maxSize, int ttl)
+    {
+        this.maxSize = Math.max(maxSize, 0) * 1024L * 1024L;
+        this.ttl     = Math.max(ttl, 0) * 1000L;
+        this.dir     = null;
+
+        entries.clear();
+        size = 0;
+
+        if (this.maxSize == 0 || (!dir.isDirectory() && !dir.mkdirs()))
+            return;
+
+        this.dir = dir;
+
+        File[] files = dir.listFiles();
+
+        if (files == null)
+            return;
+
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+
+        for (File file : files)
+        {
+            String name = file.getName();
+
+            if (name.endsWith(".pdf") && name.length() == 68)
+            {
+                Entry entry = new Entry(file);
+
+                entries.put(name.substring(0, 64), entry);
+                size += entry.length;
+            }
+            else
+            {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+
+        trimToSize(this.maxSize);
+    }
+
+    /**
+     * If the cache has been set up and is not disabled.
+     */
+    synchronized boolean isEnabled()
+    {
+        return dir != null;
+    }
+
+    /**
+     * Returns the key for the markup rendered with the given attributes.
+     *
+     * @param content    The markup to render.
+     * @param mimeType   The mime type of the markup.
+     * @param baseUrl    The URL to resolve relative links against.
+     * @param attributes The attributes to lay out the content for.
+     * @param settings   Additional settings how to render the content.
+     */
+    @NonNull
+    static String getKey (@Nullable String content, @NonNull String mimeType,
+                          @NonNull String baseUrl,
+                          @NonNull PrintAttributes attributes,
+                          @NonNull JSONObject settings)
+    {
+        PrintAttributes.MediaSize media   = attributes.getMediaSize();
+        PrintAttributes.Margins margins   = attributes.getMinMargins();
+        PrintAttributes.Resolution dpi    = attributes.getResolution();
+        JSONObject font                   = settings.optJSONObject("font");
+
+        String spec = mimeType + '\0' + baseUrl
+                + '\0' + media.getWidthMils() + 'x' + media.getHeightMils()
+                + '\0' + margins.getLeftMils() + ',' + margins.getTopMils()
+                + ',' + margins.getRightMils() + ',' + margins.getBottomMils()
+                + '\0' + dpi.getHorizontalDpi() + 'x' + dpi.getVerticalDpi()
+                + '\0' + attributes.getColorMode()
+                + '\0' + settings.optBoolean("javascript", false)
+                + '\0' + (font != null ? font.optInt("size", 0) : 0)
+                + '\0';
+
+        return sha256(spec, content);
+    }
+
+    /**
+     * Returns the SHA-256 hash of the concatenated texts as hex string.
+     * The texts get encoded chunk by chunk into a small buffer, so that
+     * large contents like base64 strings are not copied as a whole.
+     *
+     * @param texts The texts to hash, null ones are skipped.
+     */
+    @NonNull
+    static String sha256 (@NonNull String... texts)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        for (String text : texts)
+        {
+            if (text == null)
+                continue;
+
+            CharBuffer chars = CharBuffer.wrap(text);
+            boolean done     = false;
+
+            encoder.reset();
+
+            while (!done)
+            {
+                CoderResult res = encoder.encode(chars, buf, true);
+
+                if (res.isUnderflow())
+                {
+                    encoder.flush(buf);
+                    done = true;
+                }
+
+                buf.flip();
+                digest.update(buf);
+                buf.clear();
+            }
+        }
+
+        byte[] hash = digest.digest();
+        char[] hex  = new char[hash.length * 2];
+
+        for (int i = 0; i < hash.length; i++)
+        {
+            hex[i * 2]     = HEX[(hash[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+
+        return new String(hex);
+    }
+
+    /**
+     * Returns the cached document, pinned until released.
+     *
+     * @param key The key of the document.
+     *
+     * @return null if not cached or expired.
+     */
+    @Nullable
+    synchronized File get (@NonNull String key)
+    {
+        Entry entry = entries.get(key);
+        File file   = entry != null ? entry.file : null;
+
+        if (file != null && (!file.isFile() || isExpired(file)))
+        {
+            remove(key);
+            file = null;
+        }
+
+        if (file == null)
+        {
+            missCount++;
+        }
+        else
+        {
+            hitCount++;
+            pin(key);
+        }
+
+        return file;
+    }
+
+    /**
+     * Creates a new file within the cache directory to render into
+     * before it gets added by put.
+     *
+     * @throws IOException If the cache is disabled or the file can't be
+     *                     created.
+     */
+    @NonNull
+    synchronized File createFile() throws IOException
+    {
+        if (dir == null)
+            throw new IOException("Cache is disabled");
+
+        return File.createTempFile("render", ".tmp", dir);
+    }
+
+    /**
+     * Adds the rendered document to the cache, pinned until released.
+     *
+     * @param key  The key of the document.
+     * @param file The file created by createFile.
+     *
+     * @return The file of the cached document, or the passed file if it
+     *         could not be added.
+     */
+    @NonNull
+    synchronized File put (@NonNull String key, @NonNull File file)
+    {
+        if (dir == null)
+            return file;
+
+        File target = new File(dir, key + ".pdf");
+
+        remove(key);
+        pin(key);
+
+        if (!file.renameTo(target))
+            return file;
+
+        Entry entry = new Entry(target);
+
+        entries.put(key, entry);
+        size += entry.length;
+
+        trimToSize(maxSize);
+
+        return target;
+    }
+
+    /**
+     * Releases the document returned by get or put once the print job is
+     * done. Deletes its file if it got removed from the cache meanwhile.
+     *
+     * @param key The key of the document.
+     */
+    synchronized void release (@NonNull String key)
+    {
+        Integer count = pins.get(key);
+
+        if (count == null)
+            return;
+
+        if (count > 1)
+        {
+            pins.put(key, count - 1);
+            return;
+        }
+
+        pins.remove(key);
+
+        if (dir != null && !entries.containsKey(key))
+        {
+            //noinspection ResultOfMethodCallIgnored
+            new File(dir, key + ".pdf").delete();
+        }
+
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Returns the hit and miss counters and the size of the cache.
+     */
+    @NonNull
+    synchronized JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+
+        try {
+            stats.put("hits", hitCount);
+            stats.put("misses", missCount);
+            stats.put("evictions", evictionCount);
+            stats.put("count", entries.size());
+            stats.put("size", size);
+            stats.put("maxSize", maxSize);
+        } catch (JSONException e) {
+            // ignore
+        }
+
+        return stats;
+    }
+
+    /**
+     * If the document has been rendered longer ago than the TTL.
+     *
+     * @param file The cached document.
+     */
+    private boolean isExpired (@NonNull File file)
+    {
+        return ttl > 0 && System.currentTimeMillis() - file.lastModified() > ttl;
+    }
+
+    /**
+     * Pins the document until released.
+     *
+     * @param key The key of the document.
+     */
+    private void pin (@NonNull String key)
+    {
+        Integer count = pins.get(key);
+
+        pins.put(key, count != null ? count + 1 : 1);
+    }
+
+    /**
+     * Removes the document from the cache and deletes its file, unless
+     * pinned. The file of a pinned document gets deleted once released.
+     *
+     * @param key The key of the document.
+     */
+    private void remove (@NonNull String key)
+    {
+        Entry entry = entries.remove(key);
+
+        if (entry == null)
+            return;
+
+        size -= entry.length;
+
+        if (pins.containsKey(key))
+            return;
+
+        //noinspection ResultOfMethodCallIgnored
+        entry.file.delete();
+    }
+
+    /**
+     * Deletes the least recently used documents until the total size
+     * fits into the limit. Pinned documents are skipped.
+     *
+     * @param maxSize The max size in bytes.
+     */
+    private void trimToSize (long maxSize)
+    {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+
+        while (size > maxSize && it.hasNext())
+        {
+            Map.Entry<String, Entry> item = it.next();
+            Entry entry                   = item.getValue();
+
+            if (pins.containsKey(item.getKey()))
+                continue;
+
+            it.remove();
+            size -= entry.length;
+            evictionCount++;
+
+            //noinspection ResultOfMethodCallIgnored
+            entry.file.delete();
+        }
+    }
+
+    /**
+     * A cached document and its size at the time it was added.
+     */
+    private static final class Entry
+    {
+        // The file of the document
+        final @NonNull File file;
+
+        // The size of the file in bytes
+        final long length;
+
+        /**
+         * Constructor
+         *
+         * @param file The file of the document.
+         */
+        Entry (@NonNull File file)
+        {
+            this.file   = file;
+            this.length = file.length();
+        }
+    }
+}
@@ -0,0 +1,628 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Writes a new PDF document that contains a subset of the pages of one
+ * or more other documents. Only the objects reachable from the selected
+ * pages are taken over. The objects of the first document get copied as
+ * they are, keeping their object numbers. The objects of further
+ * documents get shifted behind the ones of the previous documents, so
+ * their references have to be rewritten while their stream data still
+ * gets copied as it is.
+ */
+class PrintPdfWriter
+{
+    // Bytes are written one char per byte
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    // The source documents in the order they have been added
+    private final @NonNull List<Source> sources = new ArrayList<>();
+
+    // The selected pages in output order
+    private final @NonNull List<Selection> pages = new ArrayList<>();
+
+    // The number of object numbers reserved by the sources
+    private int size = 1;
+
+    /**
+     * Constructor for an empty document, pages get added by add.
+     */
+    PrintPdfWriter() {}
+
+    /**
+     * Collects the selected pages and all objects they depend on.
+     *
+     * @param pdf     The source document.
+     * @param indices The zero-based page indices in ascending order.
+     *
+     * @throws IOException If the document is malformed.
+     */
+    PrintPdfWriter (@NonNull PrintPdf pdf, @NonNull int[] indices)
+            throws IOException
+    {
+        add(pdf, indices);
+    }
+
+    /**
+     * Appends the selected pages of the document and collects all objects
+     * they depend on. The same document can be passed more than once,
+     * but not the same page. Shared objects get written only once.
+     *
+     * @param pdf     The source document.
+     * @param indices The zero-based page indices.
+     *
+     * @throws IOException If the document is malformed.
+     */
+    void add (@NonNull PrintPdf pdf, @NonNull int[] indices) throws IOException
+    {
+        Source source           = getSource(pdf);
+        List<PrintPdf.Page> all = source.getPages();
+        Deque<Object> queue     = new ArrayDeque<>();
+
+        for (int index : indices)
+        {
+            if (index < 0 || index >= all.size())
+                throw new IOException("Page index out of range: " + index);
+
+            PrintPdf.Page page = all.get(index);
+
+            if (!source.own.add(page.ref.num))
+                throw new IOException("Page added twice: " + index);
+
+            pages.add(new Selection(source, page));
+
+            for (Map.Entry<String, Object> entry : page.dict.entrySet())
+            {
+                if (!entry.getKey().equals("Parent"))
+                {
+                    queue.add(entry.getValue());
+                }
+            }
+        }
+
+        source.collectObjects(queue);
+    }
+
+    /**
+     * Writes the document into the channel.
+     *
+     * @param channel The channel to write into.
+     *
+     * @throws IOException If the source is not readable or the channel
+     *                     not writable.
+     */
+    void writeTo (@NonNull WritableByteChannel channel) throws IOException
+    {
+        Output out          = new Output(channel);
+        int pagesNum        = size;
+        int catalogNum      = size + 1;
+        long[] xref         = new long[size + 2];
+        int[] gens          = new int[size + 2];
+        PrintPdf.Ref parent = new PrintPdf.Ref(pagesNum, 0);
+        StringBuilder kids  = new StringBuilder();
+        Object ocProperties = null;
+        String version      = "1.4";
+
+        for (Source source : sources)
+        {
+            String own = source.pdf.getVersion();
+
+            if (own.compareTo(version) > 0)
+            {
+                version = own;
+            }
+        }
+
+        out.write("%PDF-" + version + "\n%\u00e2\u00e3\u00cf\u00d3\n");
+
+        for (Source source : sources)
+        {
+            for (PrintPdf.Ref ref : source.objects.values())
+            {
+                PrintPdf.Ref target = source.map(ref);
+
+                xref[target.num] = out.position;
+                gens[target.num] = target.gen;
+
+                source.writeObject(out, ref, target);
+            }
+
+            if (sources.size() == 1)
+            {
+                ocProperties = source.ocProperties;
+            }
+        }
+
+        for (Selection selection : pages)
+        {
+            Source source            = selection.source;
+            PrintPdf.Ref ref         = source.map(selection.page.ref);
+            Map<String, Object> dict = new LinkedHashMap<>();
+
+            for (Map.Entry<String, Object> entry : selection.page.dict.entrySet())
+            {
+                if (!entry.getKey().equals("Parent"))
+                {
+                    dict.put(entry.getKey(), source.remap(entry.getValue()));
+                }
+            }
+
+            dict.put("Parent", parent);
+
+            xref[ref.num] = out.position;
+            gens[ref.num] = ref.gen;
+
+            out.write(ref.num + " " + ref.gen + " obj\n");
+            out.write(serialize(dict));
+            out.write("\nendobj\n");
+
+            kids.append(ref).append(' ');
+        }
+
+        xref[pagesNum] = out.position;
+        out.write(pagesNum + " 0 obj\n<</Type /Pages /Count " + pages.size()
+                + " /Kids [" + kids + "]>>\nendobj\n");
+
+        xref[catalogNum] = out.position;
+        out.write(catalogNum + " 0 obj\n<</Type /Catalog /Pages " + parent);
+
+        if (ocProperties != null)
+        {
+            out.write(" /OCProperties " + serialize(ocProperties));
+        }
+
+        out.write(">>\nendobj\n");
+
+        writeXref(out, xref, gens, catalogNum);
+        out.flush();
+    }
+
+    /**
+     * Returns the source for the document. Each new source reserves the
+     * object numbers of its document behind the ones of the previous
+     * sources.
+     *
+     * @param pdf The source document.
+     */
+    @NonNull
+    private Source getSource (@NonNull PrintPdf pdf) throws IOException
+    {
+        for (Source source : sources)
+        {
+            if (source.pdf == pdf)
+                return source;
+        }
+
+        Source source = new Source(pdf, sources.isEmpty() ? 0 : size);
+
+        size = source.base + pdf.getSize();
+        sources.add(source);
+
+        return source;
+    }
+
+    /**
+     * Writes the cross-reference table and the trailer.
+     *
+     * @param out     The output to write into.
+     * @param xref    The offsets of the written objects.
+     * @param gens    The generation numbers of the written objects.
+     * @param rootNum The object number of the catalog.
+     */
+    private static void writeXref (@NonNull Output out, @NonNull long[] xref,
+                                   @NonNull int[] gens, int rootNum)
+            throws IOException
+    {
+        long start = out.position;
+
+        out.write("xref\n0 " + xref.length + "\n");
+        out.write("0000000000 65535 f\r\n");
+
+        for (int num = 1; num < xref.length; num++)
+        {
+            if (xref[num] > 0)
+            {
+                out.write(String.format(Locale.US, "%010d %05d n\r\n", xref[num], gens[num]));
+            }
+            else
+            {
+                out.write("0000000000 65535 f\r\n");
+            }
+        }
+
+        out.write("trailer\n<</Size " + xref.length + " /Root " + rootNum
+                + " 0 R>>\nstartxref\n" + start + "\n%%EOF\n");
+    }
+
+    /**
+     * If the dictionary is a page or a node of the page tree.
+     *
+     * @param dict The dictionary to check.
+     */
+    private static boolean isPageNode (@NonNull Map dict)
+    {
+        Object type = dict.get("Type");
+
+        return "/Page".equals(type) || "/Pages".equals(type);
+    }
+
+    /**
+     * Converts the parsed value back into its textual representation.
+     *
+     * @param value The value to serialize.
+     */
+    @NonNull
+    static String serialize (@NonNull Object value)
+    {
+        StringBuilder sb = new StringBuilder();
+
+        serialize(value, sb);
+
+        return sb.toString();
+    }
+
+    /**
+     * Converts the parsed value back into its textual representation.
+     *
+     * @param value The value to serialize.
+     * @param sb    The builder to append to.
+     */
+    private static void serialize (@NonNull Object value, @NonNull StringBuilder sb)
+    {
+        if (value instanceof Map)
+        {
+            sb.append("<<");
+
+            for (Object entry : ((Map) value).entrySet())
+            {
+                sb.append('/').append(((Map.Entry) entry).getKey()).append(' ');
+                serialize(((Map.Entry) entry).getValue(), sb);
+                sb.append(' ');
+            }
+
+            sb.append(">>");
+        }
+        else if (value instanceof List)
+        {
+            sb.append('[');
+
+            for (Object item : (List) value)
+            {
+                serialize(item, sb);
+                sb.append(' ');
+            }
+
+            sb.append(']');
+        }
+        else
+        {
+            sb.append(value);
+        }
+    }
+
+    /**
+     * A source document and the objects to take over from it.
+     */
+    private static final class Source
+    {
+        // The document
+        final @NonNull PrintPdf pdf;
+
+        // The offset added to the object numbers, 0 to keep them as they are
+        final int base;
+
+        // The object numbers of the selected pages
+        final @NonNull Set<Integer> own = new HashSet<>();
+
+        // The objects to take over, sorted by object number
+        final @NonNull TreeMap<Integer, PrintPdf.Ref> objects = new TreeMap<>();
+
+        // The optional content configuration of the catalog
+        final @Nullable Object ocProperties;
+
+        // All pages of the document, read on first use
+        private @Nullable List<PrintPdf.Page> pages;
+
+        /**
+         * Constructor
+         *
+         * @param pdf  The document.
+         * @param base The offset added to the object numbers.
+         *
+         * @throws IOException If the document catalog is missing.
+         */
+        Source (@NonNull PrintPdf pdf, int base) throws IOException
+        {
+            this.pdf          = pdf;
+            this.base         = base;
+            this.ocProperties = pdf.getCatalog().get("OCProperties");
+
+            if (ocProperties != null)
+            {
+                collectObjects(new ArrayDeque<>(Collections.singletonList(ocProperties)));
+            }
+        }
+
+        /**
+         * Returns all pages of the document.
+         *
+         * @throws IOException If the page tree is malformed.
+         */
+        @NonNull
+        List<PrintPdf.Page> getPages() throws IOException
+        {
+            if (pages == null)
+            {
+                pages = pdf.getPages();
+            }
+
+            return pages;
+        }
+
+        /**
+         * Walks through the values and collects all referenced objects.
+         * Pages and page tree nodes which are not part of the selection
+         * are not followed, references to them end up as null objects.
+         *
+         * @param queue The values to walk through.
+         */
+        void collectObjects (@NonNull Deque<Object> queue) throws IOException
+        {
+            while (!queue.isEmpty())
+            {
+                Object value = queue.poll();
+
+                if (value instanceof Map)
+                {
+                    queue.addAll(((Map) value).values());
+                }
+                else if (value instanceof List)
+                {
+                    queue.addAll((List) value);
+                }
+                else if (value instanceof PrintPdf.Ref)
+                {
+                    PrintPdf.Ref ref = (PrintPdf.Ref) value;
+
+                    if (own.contains(ref.num) || objects.containsKey(ref.num) || !pdf.hasObject(ref.num))
+                        continue;
+
+                    Object obj = pdf.getObject(ref.num);
+
+                    if (obj instanceof Map && isPageNode((Map) obj))
+                        continue;
+
+                    objects.put(ref.num, ref);
+
+                    if (obj != null)
+                    {
+                        queue.add(obj);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the reference within the written document.
+         *
+         * @param ref The reference within the source document.
+         */
+        @NonNull
+        PrintPdf.Ref map (@NonNull PrintPdf.Ref ref)
+        {
+            return base == 0 ? ref : new PrintPdf.Ref(base + ref.num, 0);
+        }
+
+        /**
+         * Returns a copy of the value with all references mapped to the
+         * written document.
+         *
+         * @param value The parsed value.
+         */
+        @NonNull
+        @SuppressWarnings("unchecked")
+        Object remap (@NonNull Object value)
+        {
+            if (base == 0)
+                return value;
+
+            if (value instanceof Map)
+            {
+                Map<String, Object> copy = new LinkedHashMap<>();
+
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet())
+                {
+                    copy.put(entry.getKey(), remap(entry.getValue()));
+                }
+
+                return copy;
+            }
+            else if (value instanceof List)
+            {
+                List<Object> copy = new ArrayList<>();
+
+                for (Object item : (List<Object>) value)
+                {
+                    copy.add(remap(item));
+                }
+
+                return copy;
+            }
+            else if (value instanceof PrintPdf.Ref)
+            {
+                return map((PrintPdf.Ref) value);
+            }
+
+            return value;
+        }
+
+        /**
+         * Writes the object. Objects which keep their number get copied as
+         * they are, others get written with their references rewritten
+         * followed by their stream data as it is.
+         *
+         * @param out    The output to write into.
+         * @param ref    The reference within the source document.
+         * @param target The reference within the written document.
+         */
+        void writeObject (@NonNull Output out, @NonNull PrintPdf.Ref ref,
+                          @NonNull PrintPdf.Ref target)
+                throws IOException
+        {
+            if (base == 0)
+            {
+                long[] span = pdf.getObjectSpan(ref.num);
+
+                out.copy(pdf.getInput(), span[0], span[1] - span[0]);
+                out.write("\n");
+                return;
+            }
+
+            Object value = pdf.getObject(ref.num);
+            long stream  = pdf.getStreamOffset(ref.num);
+
+            out.write(target.num + " " + target.gen + " obj\n");
+            out.write(value != null ? serialize(remap(value)) : "null");
+            out.write("\n");
+
+            if (stream != -1)
+            {
+                long end = pdf.getObjectSpan(ref.num)[1];
+
+                out.copy(pdf.getInput(), stream, end - stream);
+                out.write("\n");
+            }
+            else
+            {
+                out.write("endobj\n");
+            }
+        }
+    }
+
+    /**
+     * A selected page and the document it comes from.
+     */
+    private static final class Selection
+    {
+        final @NonNull Source source;
+        final @NonNull PrintPdf.Page page;
+
+        Selection (@NonNull Source source, @NonNull PrintPdf.Page page)
+        {
+            this.source = source;
+            this.page   = page;
+        }
+    }
+
+    /**
+     * Buffered output which keeps track of the written bytes.
+     */
+    private static final class Output
+    {
+        // The channel to write into
+        private final @NonNull WritableByteChannel channel;
+
+        // Staging buffer for the generated parts
+        private final @NonNull ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+
+        // Number of bytes written so far
+        long position = 0;
+
+        Output (@NonNull WritableByteChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        /**
+         * Writes the text one byte per char.
+         */
+        void write (@NonNull String text) throws IOException
+        {
+            byte[] bytes = text.getBytes(LATIN1);
+
+            if (bytes.length > buffer.remaining())
+            {
+                flush();
+            }
+
+            if (bytes.length > buffer.capacity())
+            {
+                drain(ByteBuffer.wrap(bytes));
+            }
+            else
+            {
+                buffer.put(bytes);
+            }
+
+            position += bytes.length;
+        }
+
+        /**
+         * Copies the byte range of the input.
+         */
+        void copy (@NonNull PrintPdf.Input input, long pos, long count)
+                throws IOException
+        {
+            flush();
+            input.transferTo(pos, count, channel);
+            position += count;
+        }
+
+        /**
+         * Writes the staged bytes into the channel.
+         */
+        void flush() throws IOException
+        {
+            buffer.flip();
+            drain(buffer);
+            buffer.clear();
+        }
+
+        private void drain (@NonNull ByteBuffer data) throws IOException
+        {
+            while (data.hasRemaining())
+            {
+                channel.write(data);
+            }
+        }
+    }
+}
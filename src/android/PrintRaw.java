@@ -0,0 +1,488 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.webkit.WebView;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.appplant.cordova.plugin.printer.PrintSocketPool.Connection;
+
+import static android.os.Build.VERSION.SDK_INT;
+
+/**
+ * Sends documents straight to network printers which accept raw data on
+ * a TCP port, known as JetDirect or port 9100 printing, without going
+ * through the print service and its dialog. PDF documents, plain text
+ * like ZPL or ESC/POS commands and binary content of unknown type are
+ * sent as they are, markup and images get rendered into a PDF document
+ * first. In escpos format the content gets rasterized for thermal receipt
+ * printers instead. The connections are kept alive and reused by the
+ * next job, failed sends are retried on a fresh one.
+ */
+class PrintRaw
+{
+    // The default port of raw printing
+    static final int DEFAULT_PORT = 9100;
+
+    // Default timeout in milliseconds to connect and to write
+    static final int DEFAULT_TIMEOUT = 10000;
+
+    // Default number of retries after a failed send
+    static final int DEFAULT_RETRIES = 2;
+
+    // Delay in milliseconds before the first retry, doubled for each one
+    private static final long RETRY_DELAY = 250;
+
+    // The encoding of plain text content
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The application context
+    private final @NonNull Context context;
+
+    // Renders markup and images into PDF documents
+    private final @NonNull PrintManager manager;
+
+    // Runs the sends off the calling thread
+    private final @NonNull Executor executor;
+
+    // The printer to use if not specified by the settings
+    private final @Nullable String defaultHost;
+
+    // The port to use if not specified by the settings
+    private final int defaultPort;
+
+    // Counters reported by getStats
+    private final AtomicLong jobCount   = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong failCount  = new AtomicLong();
+    private final AtomicLong byteCount  = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param context     The application context.
+     * @param manager     Renders markup and images into PDF documents.
+     * @param executor    Runs the sends off the calling thread.
+     * @param defaultHost The printer to use if not specified by the settings.
+     * @param defaultPort The port to use if not specified by the settings.
+     */
+    PrintRaw (@NonNull Context context, @NonNull PrintManager manager,
+              @NonNull Executor executor, @Nullable String defaultHost,
+              int defaultPort)
+    {
+        this.context     = context;
+        this.manager     = manager;
+        this.executor    = executor;
+        this.defaultHost = defaultHost;
+        this.defaultPort = defaultPort;
+    }
+
+    /**
+     * Sends the content to the printer specified by the settings. Better
+     * not call it on the UI thread since the content gets resolved first.
+     *
+     * @param content  The content or file to print.
+     * @param settings The printer and how to render the content.
+     * @param view     The web view of the app for rendering its content.
+     * @param callback The callback to inform once the content has been sent.
+     */
+    void print (@Nullable String content, @NonNull JSONObject settings,
+                @NonNull WebView view, @NonNull OnSendFinishCallback callback)
+    {
+        Target target = new Target(settings, defaultHost, defaultPort);
+
+        if (target.host == null)
+        {
+            callback.onFinish(false, "No printer host specified");
+            return;
+        }
+
+        PrintSource source = PrintSource.resolve(content, context);
+
+        if (settings.optString("format").equals("escpos"))
+        {
+            printEscPos(source, settings, view, target, callback);
+            return;
+        }
+
+        switch (source.getType())
+        {
+            case PDF:
+                executor.execute(() -> {
+                    File file = source.getFile();
+
+                    send(file != null ? fileOf(file) : streamOf(source), target, callback);
+                    source.close();
+                });
+                break;
+            case PLAIN:
+                executor.execute(() -> send(bytesOf(content.getBytes(UTF_8)), target, callback));
+                break;
+            case HTML:
+            case IMAGE:
+                source.close();
+                manager.render(content, settings, view, (File file, String error) -> {
+                    if (file == null)
+                    {
+                        callback.onFinish(false, error);
+                        return;
+                    }
+
+                    executor.execute(() -> {
+                        send(fileOf(file), target, callback);
+                        //noinspection ResultOfMethodCallIgnored
+                        file.delete();
+                    });
+                });
+                break;
+            default:
+                byte[] bytes = content != null ? PrintBytes.get(content) : null;
+
+                source.close();
+
+                if (bytes != null) {
+                    executor.execute(() -> send(bytesOf(bytes), target, callback));
+                } else {
+                    callback.onFinish(false, "Unsupported content");
+                }
+        }
+    }
+
+    /**
+     * Rasterizes the content into ESC/POS commands and sends them. Images
+     * get decoded for the paper size, any other content gets rendered
+     * into a PDF document first whose pages get rasterized.
+     *
+     * @param source   The resolved content.
+     * @param settings The printer and how to render the content.
+     * @param view     The web view of the app for rendering its content.
+     * @param target   The printer to send to.
+     * @param callback The callback to inform once the content has been sent.
+     */
+    private void printEscPos (@NonNull PrintSource source,
+                              @NonNull JSONObject settings,
+                              @NonNull WebView view, @NonNull Target target,
+                              @NonNull OnSendFinishCallback callback)
+    {
+        String content = source.getContent();
+        int width      = settings.optInt("rasterWidth", PrintEscPos.DEFAULT_WIDTH);
+        boolean cut    = settings.optBoolean("cut", true);
+
+        source.close();
+
+        switch (source.getType())
+        {
+            case IMAGE:
+                executor.execute(() -> {
+                    Bitmap bitmap = PrintContent.decode(content, new PrintOptions(settings), context);
+
+                    if (bitmap == null)
+                    {
+                        callback.onFinish(false, "Can't decode " + content);
+                        return;
+                    }
+
+                    PrintEscPos encoder = new PrintEscPos(width);
+
+                    encoder.addBitmap(bitmap);
+                    bitmap.recycle();
+
+                    send(bytesOf(encoder.finish(cut)), target, callback);
+                });
+                break;
+            case UNSUPPORTED:
+                callback.onFinish(false, "Unsupported content");
+                break;
+            default:
+                if (SDK_INT < 21)
+                {
+                    callback.onFinish(false, "Rasterizing documents requires Android 5.0");
+                    return;
+                }
+
+                manager.render(content, settings, view, (File file, String error) -> {
+                    if (file == null)
+                    {
+                        callback.onFinish(false, error);
+                        return;
+                    }
+
+                    executor.execute(() -> {
+                        PrintEscPos encoder = new PrintEscPos(width);
+
+                        try {
+                            encoder.addDocument(file);
+                        } catch (IOException e) {
+                            failCount.incrementAndGet();
+                            callback.onFinish(false, e.getMessage());
+                            return;
+                        } finally {
+                            //noinspection ResultOfMethodCallIgnored
+                            file.delete();
+                        }
+
+                        send(bytesOf(encoder.finish(cut)), target, callback);
+                    });
+                });
+        }
+    }
+
+    /**
+     * Returns the number of sent jobs and bytes, the retries and failures
+     * as well as the stats of the connection pool.
+     */
+    @NonNull
+    JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+
+        try {
+            stats.put("jobs", jobCount.get());
+            stats.put("bytes", byteCount.get());
+            stats.put("retries", retryCount.get());
+            stats.put("failures", failCount.get());
+            stats.put("connections", PrintSocketPool.getInstance().getStats());
+        } catch (JSONException e) {
+            // ignore
+        }
+
+        return stats;
+    }
+
+    /**
+     * Sends the payload and informs the callback about the result.
+     *
+     * @param payload  The document to send.
+     * @param target   The printer to send to.
+     * @param callback The callback to inform once the payload has been sent.
+     */
+    private void send (@NonNull Payload payload, @NonNull Target target,
+                       @NonNull OnSendFinishCallback callback)
+    {
+        try {
+            byteCount.addAndGet(send(payload, target));
+            jobCount.incrementAndGet();
+            callback.onFinish(true, null);
+        } catch (IOException e) {
+            failCount.incrementAndGet();
+            callback.onFinish(false, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the payload to a pooled connection to the printer. If the
+     * printer is not reachable or the connection breaks before any data
+     * has been written, the payload gets sent again on a fresh connection
+     * after a delay until the retries are used up. Once data has been
+     * written the job fails instead, as raw printers have no framing to
+     * drop the partial job and a resend would print it twice.
+     *
+     * @param payload The document to send.
+     * @param target  The printer to send to.
+     *
+     * @return The number of sent bytes.
+     *
+     * @throws IOException If the last attempt has failed too, or the
+     *                     document is not accessible.
+     */
+    private long send (@NonNull Payload payload, @NonNull Target target)
+            throws IOException
+    {
+        PrintSocketPool pool = PrintSocketPool.getInstance();
+        IOException failure  = null;
+
+        for (int attempt = 0; attempt <= target.retries; attempt++)
+        {
+            Connection conn = null;
+            long offset     = 0;
+
+            if (attempt > 0)
+            {
+                retryCount.incrementAndGet();
+                SystemClock.sleep(RETRY_DELAY << (attempt - 1));
+            }
+
+            try {
+                conn   = pool.acquire(target.host, target.port, target.timeout);
+                offset = conn.getWrittenCount();
+
+                long count = payload.writeTo(conn, target.timeout);
+
+                pool.release(conn, target.keepAlive);
+
+                return count;
+            } catch (FileNotFoundException e) {
+                if (conn != null) pool.release(conn, target.keepAlive);
+                throw e;
+            } catch (IOException e) {
+                if (conn != null) conn.close();
+
+                if (conn != null && conn.getWrittenCount() > offset)
+                    throw e;
+
+                failure = e;
+            }
+        }
+
+        throw failure;
+    }
+
+    /**
+     * Payload which writes the bytes to the socket.
+     *
+     * @param bytes The bytes to send.
+     */
+    @NonNull
+    private static Payload bytesOf (@NonNull byte[] bytes)
+    {
+        return (Connection conn, int timeout) -> {
+            conn.write(ByteBuffer.wrap(bytes), timeout);
+            return bytes.length;
+        };
+    }
+
+    /**
+     * Payload which transfers the file kernel-side to the socket.
+     *
+     * @param file The file to send.
+     */
+    @NonNull
+    private static Payload fileOf (@NonNull File file)
+    {
+        return (Connection conn, int timeout) -> {
+            FileInputStream stream = new FileInputStream(file);
+
+            try {
+                return conn.write(stream.getChannel(), timeout);
+            } finally {
+                PrintIO.close(stream);
+            }
+        };
+    }
+
+    /**
+     * Payload which streams the content chunk by chunk to the socket. The
+     * content gets opened again for each attempt.
+     *
+     * @param source The resolved content.
+     */
+    @NonNull
+    private static Payload streamOf (@NonNull PrintSource source)
+    {
+        return (Connection conn, int timeout) -> {
+            InputStream stream = source.open();
+
+            if (stream == null)
+                throw new FileNotFoundException("Content is not accessible anymore");
+
+            try {
+                return conn.write(stream, timeout);
+            } finally {
+                PrintIO.close(stream);
+            }
+        };
+    }
+
+    /**
+     * The printer to send to and how.
+     */
+    private static final class Target
+    {
+        // The host name or address of the printer
+        final @Nullable String host;
+
+        // The port of the printer
+        final int port;
+
+        // Timeout in milliseconds to connect and to write
+        final int timeout;
+
+        // Number of retries after a failed send
+        final int retries;
+
+        // If the connection can be reused by the next job
+        final boolean keepAlive;
+
+        /**
+         * Constructor
+         *
+         * @param settings    The settings of the job.
+         * @param defaultHost The printer to use if not specified.
+         * @param defaultPort The port to use if not specified.
+         */
+        Target (@NonNull JSONObject settings, @Nullable String defaultHost,
+                int defaultPort)
+        {
+            String host = settings.optString("host", defaultHost);
+
+            this.host      = host != null && !host.isEmpty() ? host : null;
+            this.port      = settings.optInt("port", defaultPort);
+            this.timeout   = settings.optInt("timeout", DEFAULT_TIMEOUT);
+            this.retries   = Math.max(settings.optInt("retries", DEFAULT_RETRIES), 0);
+            this.keepAlive = settings.optBoolean("keepAlive", true);
+        }
+    }
+
+    private interface Payload
+    {
+        /**
+         * Writes the document to the connection.
+         *
+         * @param conn    The connection to the printer.
+         * @param timeout Max time in milliseconds to wait for progress.
+         *
+         * @return The number of written bytes.
+         *
+         * @throws IOException If the document is not accessible or the
+         *                     write has failed.
+         */
+        long writeTo (@NonNull Connection conn, int timeout) throws IOException;
+    }
+
+    interface OnSendFinishCallback
+    {
+        /**
+         * Invoked once the document has been sent or sending has failed.
+         *
+         * @param sent  If the document has been sent completely.
+         * @param error The reason why sending has failed.
+         */
+        void onFinish (boolean sent, @Nullable String error);
+    }
+}
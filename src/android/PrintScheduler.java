@@ -0,0 +1,374 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+import static de.appplant.cordova.plugin.printer.PrintTask.State.FINISHED;
+import static de.appplant.cordova.plugin.printer.PrintTask.State.RENDERING;
+import static de.appplant.cordova.plugin.printer.PrintTask.State.SPOOLING;
+import static de.appplant.cordova.plugin.printer.PrintTask.State.WAITING;
+
+/**
+ * Runs print jobs with a limited number of jobs being rendered and
+ * spooled at the same time. Jobs which can't be rendered right away wait
+ * within a bounded queue, further jobs get rejected. Jobs which get stuck
+ * while rendering or spooling, e.g. a web view which never finishes
+ * loading, are finished as failed after a timeout to free their slot.
+ */
+class PrintScheduler
+{
+    // Tag used for logging
+    private static final String TAG = "Printer";
+
+    // Default number of jobs waiting to be rendered
+    static final int DEFAULT_QUEUE_SIZE = 16;
+
+    // Default number of jobs being rendered at the same time
+    static final int DEFAULT_RENDER_CONCURRENCY = 2;
+
+    // Default number of jobs being spooled at the same time
+    static final int DEFAULT_SPOOL_CONCURRENCY = 1;
+
+    // Default time in seconds a job may take to be rendered
+    static final int DEFAULT_RENDER_TIMEOUT = 60;
+
+    // Default time in seconds a job may take to be spooled
+    static final int DEFAULT_SPOOL_TIMEOUT = 600;
+
+    // Runs the rendering of the jobs
+    private final @NonNull Executor executor;
+
+    // Max number of jobs waiting to be rendered
+    private final int queueSize;
+
+    // Max number of jobs being rendered at the same time
+    private final int renderConcurrency;
+
+    // Max number of jobs being spooled at the same time
+    private final int spoolConcurrency;
+
+    // Time in milliseconds a job may take to be rendered, 0 for no limit
+    private final long renderTimeout;
+
+    // Time in milliseconds a job may take to be spooled, 0 for no limit
+    private final long spoolTimeout;
+
+    // Posts the timeouts of the jobs, each with the job as token
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Jobs waiting to be rendered
+    private final ArrayDeque<PrintTask> renderQueue = new ArrayDeque<>();
+
+    // Rendered jobs waiting to be spooled
+    private final ArrayDeque<PrintTask> spoolQueue = new ArrayDeque<>();
+
+    // Number of jobs being rendered and spooled
+    private int rendering;
+    private int spooling;
+
+    // Counters reported by getStats
+    private int submitCount;
+    private int rejectCount;
+    private int finishCount;
+    private int timeoutCount;
+    private int maxQueueDepth;
+
+    // Total time in milliseconds jobs have waited to be rendered and spooled
+    private long renderWaitTime;
+    private int renderWaitCount;
+    private long spoolWaitTime;
+    private int spoolWaitCount;
+
+    /**
+     * Constructor
+     *
+     * @param executor          Runs the rendering of the jobs.
+     * @param queueSize         Max number of jobs waiting to be rendered.
+     * @param renderConcurrency Max number of jobs being rendered at once.
+     * @param spoolConcurrency  Max number of jobs being spooled at once.
+     * @param renderTimeout     Time in seconds a job may take to be
+     *                          rendered, 0 for no limit.
+     * @param spoolTimeout      Time in seconds a job may take to be
+     *                          spooled, 0 for no limit.
+     */
+    PrintScheduler (@NonNull Executor executor, int queueSize,
+                    int renderConcurrency, int spoolConcurrency,
+                    int renderTimeout, int spoolTimeout)
+    {
+        this.executor          = executor;
+        this.queueSize         = Math.max(queueSize, 0);
+        this.renderConcurrency = Math.max(renderConcurrency, 1);
+        this.spoolConcurrency  = Math.max(spoolConcurrency, 1);
+        this.renderTimeout     = Math.max(renderTimeout, 0) * 1000L;
+        this.spoolTimeout      = Math.max(spoolTimeout, 0) * 1000L;
+    }
+
+    /**
+     * Renders the job right away if there is a free slot, otherwise it
+     * gets queued.
+     *
+     * @param task The job to run.
+     *
+     * @return false if the queue is full and the job has been rejected.
+     */
+    boolean submit (@NonNull PrintTask task)
+    {
+        synchronized (this)
+        {
+            if (rendering >= renderConcurrency && renderQueue.size() >= queueSize)
+            {
+                rejectCount++;
+                Log.w(TAG, "Rejected print job #" + task.getId() + ", queue is full");
+                return false;
+            }
+
+            submitCount++;
+            task.attach(this);
+            renderQueue.add(task);
+            maxQueueDepth = Math.max(maxQueueDepth, renderQueue.size());
+        }
+
+        startRendering();
+
+        return true;
+    }
+
+    /**
+     * Hands the rendered job over to the print service once there is
+     * a free spool slot and starts rendering the next queued job.
+     *
+     * @param task  The rendered job.
+     * @param spool Hands the job over to the print service.
+     */
+    void spool (@NonNull PrintTask task, @NonNull Runnable spool)
+    {
+        synchronized (this)
+        {
+            if (task.state != RENDERING)
+                return;
+
+            rendering--;
+            task.state      = WAITING;
+            task.spool      = spool;
+            task.renderedAt = PrintTask.now();
+            spoolQueue.add(task);
+            handler.removeCallbacksAndMessages(task);
+        }
+
+        startSpooling();
+        startRendering();
+    }
+
+    /**
+     * Releases the slot of the finished job and starts the next ones.
+     *
+     * @param task The finished job.
+     *
+     * @return false if the job has been finished already.
+     */
+    boolean finish (@NonNull PrintTask task)
+    {
+        synchronized (this)
+        {
+            switch (task.state)
+            {
+                case FINISHED:
+                    return false;
+                case QUEUED:
+                    renderQueue.remove(task);
+                    break;
+                case RENDERING:
+                    rendering--;
+                    break;
+                case WAITING:
+                    spoolQueue.remove(task);
+                    break;
+                case SPOOLING:
+                    spooling--;
+                    break;
+            }
+
+            task.state = FINISHED;
+            task.spool = null;
+            finishCount++;
+            handler.removeCallbacksAndMessages(task);
+        }
+
+        startSpooling();
+        startRendering();
+
+        return true;
+    }
+
+    /**
+     * Returns the depth of the queues, the number of running jobs and the
+     * average time jobs had to wait to be rendered and spooled.
+     */
+    @NonNull
+    synchronized JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+
+        try {
+            stats.put("submitted", submitCount);
+            stats.put("rejected", rejectCount);
+            stats.put("finished", finishCount);
+            stats.put("timedOut", timeoutCount);
+            stats.put("queued", renderQueue.size());
+            stats.put("maxQueued", maxQueueDepth);
+            stats.put("queueSize", queueSize);
+            stats.put("rendering", rendering);
+            stats.put("waiting", spoolQueue.size());
+            stats.put("spooling", spooling);
+            stats.put("renderWaitTime", renderWaitCount > 0 ? renderWaitTime / renderWaitCount : 0);
+            stats.put("spoolWaitTime", spoolWaitCount > 0 ? spoolWaitTime / spoolWaitCount : 0);
+        } catch (JSONException e) {
+            // ignore
+        }
+
+        return stats;
+    }
+
+    /**
+     * Renders queued jobs as long as there are free render slots.
+     */
+    private void startRendering()
+    {
+        PrintTask task;
+
+        while ((task = nextToRender()) != null)
+        {
+            executor.execute(task::run);
+        }
+    }
+
+    /**
+     * Spools waiting jobs as long as there are free spool slots.
+     */
+    private void startSpooling()
+    {
+        PrintTask task;
+
+        while ((task = nextToSpool()) != null)
+        {
+            Runnable spool = task.spool;
+
+            task.spool = null;
+
+            try {
+                if (spool != null) spool.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Print job #" + task.getId() + " failed", e);
+                task.onFinish(false);
+            }
+        }
+    }
+
+    /**
+     * Takes the next queued job if there is a free render slot.
+     *
+     * @return null if there is no job or slot.
+     */
+    @Nullable
+    private synchronized PrintTask nextToRender()
+    {
+        if (rendering >= renderConcurrency || renderQueue.isEmpty())
+            return null;
+
+        PrintTask task = renderQueue.poll();
+        long now       = PrintTask.now();
+
+        rendering++;
+        task.state = RENDERING;
+        scheduleTimeout(task, RENDERING, renderTimeout);
+
+        renderWaitTime += now - task.queuedAt;
+        renderWaitCount++;
+
+        return task;
+    }
+
+    /**
+     * Takes the next rendered job if there is a free spool slot.
+     *
+     * @return null if there is no job or slot.
+     */
+    @Nullable
+    private synchronized PrintTask nextToSpool()
+    {
+        if (spooling >= spoolConcurrency || spoolQueue.isEmpty())
+            return null;
+
+        PrintTask task = spoolQueue.poll();
+        long now       = PrintTask.now();
+
+        spooling++;
+        task.state     = SPOOLING;
+        task.spooledAt = now;
+        scheduleTimeout(task, SPOOLING, spoolTimeout);
+
+        spoolWaitTime += now - task.renderedAt;
+        spoolWaitCount++;
+
+        return task;
+    }
+
+    /**
+     * Finishes the job as failed if it is still in the stage once the
+     * timeout has elapsed.
+     *
+     * @param task    The job to watch.
+     * @param state   The stage the job has entered.
+     * @param timeout Time in milliseconds, 0 for no limit.
+     */
+    private void scheduleTimeout (@NonNull PrintTask task,
+                                  @NonNull PrintTask.State state, long timeout)
+    {
+        if (timeout == 0)
+            return;
+
+        handler.postAtTime(() -> {
+            synchronized (this)
+            {
+                if (task.state != state)
+                    return;
+
+                timeoutCount++;
+            }
+
+            Log.w(TAG, "Print job #" + task.getId() + " timed out while " + (state == RENDERING ? "rendering" : "spooling"));
+            task.onFinish(false);
+        }, task, SystemClock.uptimeMillis() + timeout);
+    }
+}
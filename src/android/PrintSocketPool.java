@@ -0,0 +1,463 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Pool of kept-alive TCP connections to network printers, keyed by host
+ * and port. Connections which have been closed by the printer or have
+ * been idle for too long get dropped before they're handed out again.
+ * Writes are non-blocking and wait for the socket with a timeout, since
+ * blocking sockets can only time out on reads.
+ */
+class PrintSocketPool
+{
+    // Max number of idle connections to keep per host
+    private static final int MAX_IDLE_PER_HOST = 2;
+
+    // Time in milliseconds after which idle connections get dropped
+    private static final long IDLE_TIMEOUT = 30 * 1000;
+
+    // Size of the buffer used to stream content
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // The shared instance
+    private static PrintSocketPool instance;
+
+    // Idle connections by host and port, the most recently used first
+    private final Map<String, ArrayDeque<Connection>> idle = new HashMap<>();
+
+    // Counters reported by getStats
+    private int connectCount;
+    private int reuseCount;
+    private int staleCount;
+
+    private PrintSocketPool() {}
+
+    /**
+     * Returns the shared instance.
+     */
+    @NonNull
+    static synchronized PrintSocketPool getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new PrintSocketPool();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Returns an idle connection to the printer or opens a new one.
+     *
+     * @param host    The host name or address of the printer.
+     * @param port    The port of the printer.
+     * @param timeout Max time in milliseconds to wait for the connection.
+     *
+     * @throws IOException If the printer is not reachable.
+     */
+    @NonNull
+    Connection acquire (@NonNull String host, int port, int timeout)
+            throws IOException
+    {
+        String key = host + ":" + port;
+        Connection conn;
+
+        while ((conn = pollIdle(key)) != null)
+        {
+            if (conn.isAlive())
+            {
+                synchronized (this) { reuseCount++; }
+                return conn;
+            }
+
+            synchronized (this) { staleCount++; }
+            conn.close();
+        }
+
+        conn = Connection.open(key, host, port, timeout);
+
+        synchronized (this) { connectCount++; }
+
+        return conn;
+    }
+
+    /**
+     * Hands the connection back to the pool or closes it.
+     *
+     * @param conn      The connection to release.
+     * @param keepAlive If the connection can be used for the next job.
+     */
+    void release (@NonNull Connection conn, boolean keepAlive)
+    {
+        if (keepAlive && conn.isAlive())
+        {
+            synchronized (this)
+            {
+                ArrayDeque<Connection> conns = idle.get(conn.key);
+
+                if (conns == null)
+                {
+                    conns = new ArrayDeque<>();
+                    idle.put(conn.key, conns);
+                }
+
+                conn.lastUsed = SystemClock.elapsedRealtime();
+                conns.addFirst(conn);
+
+                if (conns.size() <= MAX_IDLE_PER_HOST)
+                    return;
+
+                conn = conns.removeLast();
+            }
+        }
+
+        conn.close();
+    }
+
+    /**
+     * Closes all idle connections.
+     */
+    void evictAll()
+    {
+        ArrayDeque<Connection> conns = new ArrayDeque<>();
+
+        synchronized (this)
+        {
+            for (ArrayDeque<Connection> list : idle.values())
+            {
+                conns.addAll(list);
+            }
+
+            idle.clear();
+        }
+
+        for (Connection conn : conns)
+        {
+            conn.close();
+        }
+    }
+
+    /**
+     * Returns the number of opened, reused and stale connections.
+     */
+    @NonNull
+    synchronized JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        int count        = 0;
+
+        for (ArrayDeque<Connection> list : idle.values())
+        {
+            count += list.size();
+        }
+
+        try {
+            stats.put("connects", connectCount);
+            stats.put("reuses", reuseCount);
+            stats.put("stale", staleCount);
+            stats.put("idle", count);
+        } catch (JSONException e) {
+            // ignore
+        }
+
+        return stats;
+    }
+
+    /**
+     * Takes the most recently used idle connection. Connections idle for
+     * longer than the timeout get closed.
+     *
+     * @param key The host and port.
+     *
+     * @return null if there is no idle connection left.
+     */
+    private Connection pollIdle (@NonNull String key)
+    {
+        Connection conn;
+
+        synchronized (this)
+        {
+            ArrayDeque<Connection> conns = idle.get(key);
+
+            conn = conns != null ? conns.pollFirst() : null;
+
+            if (conns != null && conns.isEmpty())
+            {
+                idle.remove(key);
+            }
+        }
+
+        if (conn != null && SystemClock.elapsedRealtime() - conn.lastUsed > IDLE_TIMEOUT)
+        {
+            synchronized (this) { staleCount++; }
+            conn.close();
+
+            return pollIdle(key);
+        }
+
+        return conn;
+    }
+
+    /**
+     * Non-blocking connection to a printer.
+     */
+    static final class Connection implements Closeable
+    {
+        // The host and port
+        final @NonNull String key;
+
+        // The socket channel in non-blocking mode
+        private final @NonNull SocketChannel channel;
+
+        // Waits until the channel is writable
+        private final @NonNull Selector selector;
+
+        // Time in milliseconds since boot when the connection was released
+        long lastUsed;
+
+        // Number of bytes written since connected
+        private long writtenCount;
+
+        /**
+         * Constructor
+         *
+         * @param key      The host and port.
+         * @param channel  The connected socket channel.
+         * @param selector Waits until the channel is writable.
+         */
+        private Connection (@NonNull String key, @NonNull SocketChannel channel,
+                            @NonNull Selector selector)
+        {
+            this.key      = key;
+            this.channel  = channel;
+            this.selector = selector;
+        }
+
+        /**
+         * Connects to the printer.
+         *
+         * @param key     The host and port.
+         * @param host    The host name or address of the printer.
+         * @param port    The port of the printer.
+         * @param timeout Max time in milliseconds to wait for the connection.
+         *
+         * @throws IOException If the printer is not reachable.
+         */
+        @NonNull
+        static Connection open (@NonNull String key, @NonNull String host,
+                                int port, int timeout)
+                throws IOException
+        {
+            SocketChannel channel = SocketChannel.open();
+            Selector selector     = null;
+
+            try {
+                channel.socket().setKeepAlive(true);
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().connect(new InetSocketAddress(host, port), timeout);
+                channel.configureBlocking(false);
+
+                selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_WRITE);
+
+                return new Connection(key, channel, selector);
+            } catch (IOException e) {
+                PrintIO.close(channel);
+                if (selector != null) PrintIO.close(selector);
+                throw e;
+            }
+        }
+
+        /**
+         * If the printer has not closed the connection. Status bytes the
+         * printer might have sent meanwhile get discarded.
+         */
+        boolean isAlive()
+        {
+            ByteBuffer buf = ByteBuffer.allocate(256);
+
+            try {
+                while (channel.isConnected())
+                {
+                    buf.clear();
+
+                    int len = channel.read(buf);
+
+                    if (len == -1)
+                        return false;
+
+                    if (len == 0)
+                        return true;
+                }
+            } catch (IOException e) {
+                // broken connection
+            }
+
+            return false;
+        }
+
+        /**
+         * Writes the bytes, waiting for the socket to become writable.
+         *
+         * @param data    The bytes to write.
+         * @param timeout Max time in milliseconds to wait for progress.
+         *
+         * @throws IOException If the write timed out or failed.
+         */
+        void write (@NonNull ByteBuffer data, int timeout) throws IOException
+        {
+            while (data.hasRemaining())
+            {
+                int sent = channel.write(data);
+
+                if (sent == 0)
+                {
+                    awaitWritable(timeout);
+                }
+
+                writtenCount += sent;
+            }
+        }
+
+        /**
+         * Transfers the file kernel-side to the socket.
+         *
+         * @param file    The file to send.
+         * @param timeout Max time in milliseconds to wait for progress.
+         *
+         * @return The number of bytes written.
+         *
+         * @throws IOException If the write timed out or failed.
+         */
+        long write (@NonNull FileChannel file, int timeout) throws IOException
+        {
+            long size = file.size();
+            long pos  = 0;
+
+            while (pos < size)
+            {
+                long sent = file.transferTo(pos, size - pos, channel);
+
+                if (sent == 0)
+                {
+                    awaitWritable(timeout);
+                }
+
+                pos          += sent;
+                writtenCount += sent;
+            }
+
+            return pos;
+        }
+
+        /**
+         * Returns the number of bytes written since connected, including
+         * those of previous jobs if the connection got reused.
+         */
+        long getWrittenCount()
+        {
+            return writtenCount;
+        }
+
+        /**
+         * Streams the content chunk by chunk to the socket.
+         *
+         * @param stream  The content to send.
+         * @param timeout Max time in milliseconds to wait for progress.
+         *
+         * @return The number of bytes written.
+         *
+         * @throws IOException If the content is not readable or the write
+         *                     timed out or failed.
+         */
+        long write (@NonNull InputStream stream, int timeout) throws IOException
+        {
+            byte[] buf = new byte[BUFFER_SIZE];
+            long count = 0;
+            int len;
+
+            while ((len = stream.read(buf)) != -1)
+            {
+                write(ByteBuffer.wrap(buf, 0, len), timeout);
+                count += len;
+            }
+
+            return count;
+        }
+
+        /**
+         * Waits until the socket is writable again.
+         *
+         * @param timeout Max time in milliseconds to wait.
+         *
+         * @throws SocketTimeoutException If the printer does not take any
+         *                                data within the time.
+         */
+        private void awaitWritable (int timeout) throws IOException
+        {
+            selector.selectedKeys().clear();
+
+            if (selector.select(Math.max(timeout, 1)) == 0)
+                throw new SocketTimeoutException("Printer did not accept data within " + timeout + " ms");
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+            while (it.hasNext())
+            {
+                it.next();
+                it.remove();
+            }
+        }
+
+        /**
+         * Closes the socket.
+         */
+        @Override
+        public void close()
+        {
+            PrintIO.close(selector);
+            PrintIO.close(channel);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import de.appplant.cordova.plugin.printer.PrintContent.ContentType;
+
+/**
+ * Content resolved once from what the client has passed. The Uri gets
+ * opened a single time, the type is detected from the first bytes of
+ * that stream and the stream is kept open to be consumed by the print
+ * job afterwards.
+ */
+class PrintSource implements Closeable
+{
+    // The application context
+    private final @NonNull Context context;
+
+    // The content or Uri as passed by the client
+    private final @Nullable String content;
+
+    // The detected type of the content
+    private final @NonNull ContentType type;
+
+    // The detected mime type of PDF documents and images
+    private final @Nullable String mimeType;
+
+    // The stream opened to detect the type, null once taken
+    private @Nullable BufferedInputStream stream;
+
+    /**
+     * Constructor
+     *
+     * @param context The application context.
+     * @param content The content or Uri as passed by the client.
+     * @param type     The detected type of the content.
+     * @param mimeType The detected mime type of PDF documents and images.
+     * @param stream   The opened stream positioned at the beginning.
+     */
+    private PrintSource (@NonNull Context context, @Nullable String content,
+                         @NonNull ContentType type, @Nullable String mimeType,
+                         @Nullable BufferedInputStream stream)
+    {
+        this.context  = context;
+        this.content  = content;
+        this.type     = type;
+        this.mimeType = mimeType;
+        this.stream   = stream;
+    }
+
+    /**
+     * Resolves the content. Markup and plain text are taken as they are,
+     * any Uri like file://, file:///, res:// or base64:// gets opened
+     * and its type detected from its first bytes.
+     *
+     * @param content The content or Uri to resolve.
+     * @param context The application context.
+     *
+     * @return The resolved content, of type UNSUPPORTED if the Uri does
+     *         not exist or is of unknown format.
+     */
+    @NonNull
+    static PrintSource resolve (@Nullable String content,
+                                @NonNull Context context)
+    {
+        if (content == null || content.isEmpty() || content.charAt(0) == '<')
+            return new PrintSource(context, content, ContentType.HTML, null, null);
+
+        if (!isUri(content))
+            return new PrintSource(context, content, ContentType.PLAIN, null, null);
+
+        BufferedInputStream stream = PrintContent.open(content, context);
+        byte[] header              = new byte[PrintMagic.HEADER_SIZE];
+        int length                 = stream != null ? readHeader(stream, header) : -1;
+
+        if (length == -1)
+            return new PrintSource(context, content, ContentType.UNSUPPORTED, null, stream);
+
+        return new PrintSource(context, content, PrintMagic.detect(header, length),
+                PrintMagic.detectMimeType(header, length), stream);
+    }
+
+    /**
+     * The content or Uri as passed by the client.
+     */
+    @Nullable
+    String getContent()
+    {
+        return content;
+    }
+
+    /**
+     * The detected type of the content.
+     */
+    @NonNull
+    ContentType getType()
+    {
+        return type;
+    }
+
+    /**
+     * The detected mime type like application/pdf or image/png.
+     *
+     * @return null if the content is neither a PDF document nor an image.
+     */
+    @Nullable
+    String getMimeType()
+    {
+        return mimeType;
+    }
+
+    /**
+     * Returns the file behind a file:/// Uri.
+     *
+     * @return null if the content is not backed by a file.
+     */
+    @Nullable
+    File getFile()
+    {
+        return content != null ? PrintContent.getFile(content, context) : null;
+    }
+
+    /**
+     * Hands over the stream opened while resolving the content. The
+     * caller becomes responsible to close it.
+     *
+     * @return The stream positioned at the beginning or null if already
+     *         taken or there is none.
+     */
+    @Nullable
+    InputStream takeStream()
+    {
+        InputStream stream = this.stream;
+
+        this.stream = null;
+
+        return stream;
+    }
+
+    /**
+     * Hands over the stream opened while resolving the content, or opens
+     * the content once again if already taken, e.g. for another write pass.
+     *
+     * @return An open stream or null if the content is not accessible.
+     */
+    @Nullable
+    InputStream open()
+    {
+        InputStream stream = takeStream();
+
+        if (stream == null && content != null)
+        {
+            stream = PrintContent.open(content, context);
+        }
+
+        return stream;
+    }
+
+    /**
+     * Decodes the bounds of the image from the opened stream and prepares
+     * the options to decode it for the paper size and printer resolution.
+     * The stream gets consumed by that.
+     *
+     * @param options The print job settings.
+     *
+     * @return The decode options or null if its not a valid image.
+     */
+    @Nullable
+    BitmapFactory.Options decodeBounds (@NonNull PrintOptions options)
+    {
+        InputStream stream = open();
+
+        if (stream == null)
+            return null;
+
+        try {
+            return PrintContent.decodeBounds(stream, options);
+        } finally {
+            PrintIO.close(stream);
+        }
+    }
+
+    /**
+     * Closes the stream if it has not been taken.
+     */
+    @Override
+    public void close()
+    {
+        InputStream stream = takeStream();
+
+        if (stream != null)
+        {
+            PrintIO.close(stream);
+        }
+    }
+
+    /**
+     * If the content looks like a Uri with a scheme of lower case letters
+     * and digits.
+     *
+     * @param content The content to check.
+     */
+    private static boolean isUri (@NonNull String content)
+    {
+        int sep = content.indexOf("://");
+
+        if (sep <= 0 || sep + 3 >= content.length())
+            return false;
+
+        for (int i = 0; i < sep; i++)
+        {
+            char c = content.charAt(i);
+
+            if (!(c >= 'a' && c <= 'z' || c >= '0' && c <= '9'))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the first bytes of the stream to detect the type from. The
+     * stream gets reset to its beginning afterwards.
+     *
+     * @param stream The stream to look into.
+     * @param header The buffer to read into.
+     *
+     * @return The number of bytes read or -1 if the stream is not readable.
+     */
+    private static int readHeader (@NonNull BufferedInputStream stream,
+                                   @NonNull byte[] header)
+    {
+        int length = 0;
+
+        try {
+            stream.mark(header.length);
+
+            while (length < header.length)
+            {
+                int count = stream.read(header, length, header.length - length);
+
+                if (count == -1) break;
+
+                length += count;
+            }
+
+            stream.reset();
+        } catch (IOException e) {
+            return -1;
+        }
+
+        return length;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of a single print job on its way through the scheduler. The job
+ * gets rendered first, e.g. by loading the markup or decoding the image,
+ * and then spooled to the print service until the print framework is
+ * done with it.
+ */
+class PrintTask implements PrintManager.OnPrintFinishCallback
+{
+    // Tag used for logging
+    private static final String TAG = "Printer";
+
+    // The stages of a print job
+    enum State { QUEUED, RENDERING, WAITING, SPOOLING, FINISHED }
+
+    // Source of the job ids
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    // The id of the job
+    private final int id = IDS.incrementAndGet();
+
+    // Renders the job and hands it over to the spooler
+    private final @NonNull Body body;
+
+    // The callback to inform once the job is done
+    private final @NonNull PrintManager.OnPrintFinishCallback callback;
+
+    // The scheduler which runs the job
+    private @Nullable PrintScheduler scheduler;
+
+    // The stage the job is in, guarded by the scheduler
+    @NonNull State state = State.QUEUED;
+
+    // Hands the job over to the print service once there is a free slot
+    @Nullable Runnable spool;
+
+    // Times in milliseconds since boot when the job has entered a stage
+    long queuedAt;
+    long renderedAt;
+    long spooledAt;
+
+    /**
+     * Constructor
+     *
+     * @param body     Renders the job and hands it over to the spooler.
+     * @param callback The callback to inform once the job is done.
+     */
+    PrintTask (@NonNull Body body,
+               @NonNull PrintManager.OnPrintFinishCallback callback)
+    {
+        this.body     = body;
+        this.callback = callback;
+    }
+
+    /**
+     * The id of the job.
+     */
+    int getId()
+    {
+        return id;
+    }
+
+    /**
+     * The stage the job is in.
+     */
+    @NonNull
+    State getState()
+    {
+        return state;
+    }
+
+    /**
+     * Attaches the job to the scheduler which runs it.
+     *
+     * @param scheduler The scheduler which runs the job.
+     */
+    void attach (@NonNull PrintScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+        this.queuedAt  = now();
+    }
+
+    /**
+     * Renders the job. Invoked by the scheduler once there is a free
+     * render slot. The job gets finished if rendering throws.
+     */
+    void run()
+    {
+        try {
+            body.run(this);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Print job #" + id + " failed", e);
+            onFinish(false);
+        }
+    }
+
+    /**
+     * Waits for a free spool slot before the job gets handed over to the
+     * print service.
+     *
+     * @param spool Hands the job over to the print service.
+     */
+    @Override
+    public void onSpool (@NonNull Runnable spool)
+    {
+        if (scheduler != null)
+        {
+            scheduler.spool(this, spool);
+        }
+        else
+        {
+            spool.run();
+        }
+    }
+
+    /**
+     * Releases the slot of the job and invokes the callback. Only the
+     * first call has an effect.
+     *
+     * @param completed If the job has been completed.
+     */
+    @Override
+    public void onFinish (boolean completed)
+    {
+        if (scheduler != null && !scheduler.finish(this))
+            return;
+
+        callback.onFinish(completed);
+    }
+
+    /**
+     * Returns the time in milliseconds since boot.
+     */
+    static long now()
+    {
+        return SystemClock.elapsedRealtime();
+    }
+
+    interface Body
+    {
+        void run (@NonNull PrintTask task);
+    }
+}
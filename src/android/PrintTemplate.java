@@ -0,0 +1,440 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Markup template which gets compiled once when registered and then
+ * filled with the data of each job. Supports a small subset of Mustache:
+ * {{name}} inserts the escaped value, {{{name}}} the raw value, dotted
+ * names walk into nested objects, {{#name}}...{{/name}} repeats the
+ * block for each item of a list or renders it once if the value is set,
+ * i.e. neither missing, false, zero, empty text nor an empty list,
+ * {{^name}}...{{/name}} renders the block if the value is not set, and
+ * {{.}} refers to the current item.
+ */
+class PrintTemplate
+{
+    // Max number of registered templates
+    private static final int MAX_TEMPLATES = 64;
+
+    // The registered templates by their name
+    private static final ConcurrentHashMap<String, PrintTemplate> TEMPLATES = new ConcurrentHashMap<>();
+
+    // The compiled nodes
+    private final @NonNull Node[] nodes;
+
+    // The length of the last output, to size the buffer of the next one
+    private volatile int capacity;
+
+    /**
+     * Constructor
+     *
+     * @param markup The markup to compile.
+     *
+     * @throws IllegalArgumentException If a tag is not closed.
+     */
+    private PrintTemplate (@NonNull String markup)
+    {
+        List<Node> list = new ArrayList<>();
+
+        compile(markup, 0, null, list);
+
+        this.nodes    = list.toArray(new Node[0]);
+        this.capacity = markup.length();
+    }
+
+    /**
+     * Compiles the markup and registers it under the name. Replaces the
+     * template previously registered under that name. Synchronized, so
+     * that concurrent registrations can't exceed the max number.
+     *
+     * @param name   The name of the template.
+     * @param markup The markup with the placeholders.
+     *
+     * @throws IllegalArgumentException If a tag is not closed.
+     */
+    static synchronized void register (@NonNull String name, @NonNull String markup)
+    {
+        PrintTemplate template = new PrintTemplate(markup);
+
+        if (TEMPLATES.size() >= MAX_TEMPLATES && !TEMPLATES.containsKey(name))
+            throw new IllegalArgumentException("Too many templates");
+
+        TEMPLATES.put(name, template);
+    }
+
+    /**
+     * Returns the template registered under the name.
+     *
+     * @param name The name of the template.
+     *
+     * @return null if there is no such template.
+     */
+    @Nullable
+    static PrintTemplate get (@NonNull String name)
+    {
+        return TEMPLATES.get(name);
+    }
+
+    /**
+     * Fills the template with the data.
+     *
+     * @param data The values to insert.
+     */
+    @NonNull
+    String render (@Nullable JSONObject data)
+    {
+        StringBuilder out  = new StringBuilder(capacity + 256);
+        List<Object> stack = new ArrayList<>(4);
+
+        stack.add(data != null ? data : new JSONObject());
+
+        for (Node node : nodes)
+        {
+            node.render(out, stack);
+        }
+
+        capacity = out.length();
+
+        return out.toString();
+    }
+
+    /**
+     * Compiles the markup from the position on into the list of nodes
+     * until the end or the closing tag of the section.
+     *
+     * @param markup  The markup to compile.
+     * @param pos     The position to start at.
+     * @param section The name of the enclosing section or null.
+     * @param nodes   The list to add the compiled nodes to.
+     *
+     * @return The position right after the closing tag, or the length of
+     *         the markup if there is no enclosing section.
+     *
+     * @throws IllegalArgumentException If a tag is not closed.
+     */
+    private static int compile (@NonNull String markup, int pos,
+                                @Nullable String section,
+                                @NonNull List<Node> nodes)
+    {
+        while (pos < markup.length())
+        {
+            int open = markup.indexOf("{{", pos);
+
+            if (open == -1)
+                break;
+
+            if (open > pos)
+            {
+                nodes.add(new Text(markup.substring(pos, open)));
+            }
+
+            boolean raw = markup.startsWith("{{{", open);
+            String tail = raw ? "}}}" : "}}";
+            int close   = markup.indexOf(tail, open);
+
+            if (close == -1)
+                throw new IllegalArgumentException("Unclosed tag at " + open);
+
+            String tag = markup.substring(open + (raw ? 3 : 2), close).trim();
+            pos        = close + tail.length();
+
+            if (raw || tag.isEmpty()) {
+                nodes.add(new Value(tag, raw));
+                continue;
+            }
+
+            switch (tag.charAt(0))
+            {
+                case '#':
+                case '^':
+                    String name     = tag.substring(1).trim();
+                    List<Node> body = new ArrayList<>();
+
+                    pos = compile(markup, pos, name, body);
+                    nodes.add(new Section(name, tag.charAt(0) == '^', body.toArray(new Node[0])));
+                    break;
+                case '/':
+                    if (!tag.substring(1).trim().equals(section))
+                        throw new IllegalArgumentException("Unexpected closing tag " + tag + " at " + open);
+
+                    return pos;
+                case '!':
+                    break;
+                default:
+                    nodes.add(new Value(tag, false));
+            }
+        }
+
+        if (section != null)
+            throw new IllegalArgumentException("Unclosed section " + section);
+
+        if (pos < markup.length())
+        {
+            nodes.add(new Text(markup.substring(pos)));
+        }
+
+        return markup.length();
+    }
+
+    /**
+     * Looks up the value by its dotted name, starting at the innermost
+     * context which has the first part of the name.
+     *
+     * @param path  The name split at the dots.
+     * @param stack The contexts, the innermost last.
+     *
+     * @return null if there is no such value.
+     */
+    @Nullable
+    private static Object lookup (@NonNull String[] path,
+                                  @NonNull List<Object> stack)
+    {
+        if (path.length == 1 && path[0].equals("."))
+            return stack.get(stack.size() - 1);
+
+        Object value = null;
+
+        for (int i = stack.size() - 1; i >= 0 && value == null; i--)
+        {
+            Object context = stack.get(i);
+
+            if (context instanceof JSONObject)
+            {
+                value = ((JSONObject) context).opt(path[0]);
+            }
+        }
+
+        int i = 1;
+
+        for (; i < path.length && value instanceof JSONObject; i++)
+        {
+            value = ((JSONObject) value).opt(path[i]);
+        }
+
+        if (i < path.length)
+            return null;
+
+        return value == JSONObject.NULL ? null : value;
+    }
+
+    /**
+     * Appends the value with the markup characters escaped.
+     *
+     * @param out   The output to append to.
+     * @param value The value to insert.
+     */
+    private static void escape (@NonNull StringBuilder out,
+                                @NonNull String value)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            switch (c)
+            {
+                case '&':  out.append("&amp;");  break;
+                case '<':  out.append("&lt;");   break;
+                case '>':  out.append("&gt;");   break;
+                case '"':  out.append("&quot;"); break;
+                case '\'': out.append("&#39;");  break;
+                default:   out.append(c);
+            }
+        }
+    }
+
+    private interface Node
+    {
+        /**
+         * Appends the output of the node.
+         *
+         * @param out   The output to append to.
+         * @param stack The contexts, the innermost last.
+         */
+        void render (@NonNull StringBuilder out, @NonNull List<Object> stack);
+    }
+
+    /**
+     * Markup between the tags, copied as it is.
+     */
+    private static final class Text implements Node
+    {
+        // The markup
+        private final @NonNull String text;
+
+        Text (@NonNull String text)
+        {
+            this.text = text;
+        }
+
+        @Override
+        public void render (@NonNull StringBuilder out,
+                            @NonNull List<Object> stack)
+        {
+            out.append(text);
+        }
+    }
+
+    /**
+     * Placeholder for a value, either escaped or raw.
+     */
+    private static final class Value implements Node
+    {
+        // The dotted name split at the dots
+        private final @NonNull String[] path;
+
+        // If the value gets inserted without escaping
+        private final boolean raw;
+
+        Value (@NonNull String name, boolean raw)
+        {
+            this.path = name.equals(".") ? new String[] { "." } : name.split("\\.");
+            this.raw  = raw;
+        }
+
+        @Override
+        public void render (@NonNull StringBuilder out,
+                            @NonNull List<Object> stack)
+        {
+            Object value = lookup(path, stack);
+
+            if (value == null)
+                return;
+
+            if (raw) {
+                out.append(value);
+            } else {
+                escape(out, value.toString());
+            }
+        }
+    }
+
+    /**
+     * Block which gets repeated for each item of a list, rendered once
+     * for any other set value, or rendered only if the value is not set.
+     */
+    private static final class Section implements Node
+    {
+        // The dotted name split at the dots
+        private final @NonNull String[] path;
+
+        // If the block gets rendered only if the value is not set
+        private final boolean inverted;
+
+        // The nodes of the block
+        private final @NonNull Node[] body;
+
+        Section (@NonNull String name, boolean inverted, @NonNull Node[] body)
+        {
+            this.path     = name.equals(".") ? new String[] { "." } : name.split("\\.");
+            this.inverted = inverted;
+            this.body     = body;
+        }
+
+        @Override
+        public void render (@NonNull StringBuilder out,
+                            @NonNull List<Object> stack)
+        {
+            Object value = lookup(path, stack);
+
+            if (inverted)
+            {
+                if (!isSet(value)) renderBody(out, stack, null);
+                return;
+            }
+
+            if (!isSet(value))
+                return;
+
+            if (value instanceof JSONArray)
+            {
+                JSONArray list = (JSONArray) value;
+
+                for (int i = 0; i < list.length(); i++)
+                {
+                    renderBody(out, stack, list.opt(i));
+                }
+            }
+            else
+            {
+                renderBody(out, stack, value);
+            }
+        }
+
+        /**
+         * Renders the block with the value as innermost context.
+         *
+         * @param out     The output to append to.
+         * @param stack   The contexts, the innermost last.
+         * @param context The innermost context or null.
+         */
+        private void renderBody (@NonNull StringBuilder out,
+                                 @NonNull List<Object> stack,
+                                 @Nullable Object context)
+        {
+            if (context != null)
+            {
+                stack.add(context);
+            }
+
+            for (Node node : body)
+            {
+                node.render(out, stack);
+            }
+
+            if (context != null)
+            {
+                stack.remove(stack.size() - 1);
+            }
+        }
+
+        /**
+         * If the value is neither missing, false, zero, empty text nor an
+         * empty list, like the falsy values of JavaScript.
+         *
+         * @param value The value to check.
+         */
+        private static boolean isSet (@Nullable Object value)
+        {
+            if (value == null || Boolean.FALSE.equals(value))
+                return false;
+
+            if (value instanceof Number)
+                return ((Number) value).doubleValue() != 0;
+
+            if (value instanceof JSONArray)
+                return ((JSONArray) value).length() > 0;
+
+            return !(value instanceof String) || !((String) value).isEmpty();
+        }
+    }
+}
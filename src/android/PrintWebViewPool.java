@@ -0,0 +1,393 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.printer;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.webkit.CookieManager;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+
+import static android.os.Build.VERSION.SDK_INT;
+
+/**
+ * Small pool of web views to render HTML and plain text. Creating a web
+ * view is expensive, the first one even starts the browser engine. The
+ * pool can be warmed up in advance and keeps the views of finished jobs
+ * for the next ones until they have been idle for too long.
+ *
+ * The web views must only be acquired and released on the UI thread.
+ */
+class PrintWebViewPool
+{
+    // Default number of idle web views to keep
+    static final int DEFAULT_SIZE = 1;
+
+    // Default time in seconds after which idle web views get destroyed
+    static final int DEFAULT_IDLE_TIMEOUT = 300;
+
+    // Default size of the fixed font as defined by WebSettings
+    private static final int DEFAULT_FIXED_FONT_SIZE = 13;
+
+    // The shared instance
+    private static PrintWebViewPool instance;
+
+    // Idle web views, the most recently released first
+    private final ArrayDeque<WebView> idle = new ArrayDeque<>();
+
+    // Web views currently used by a print job
+    private final Set<WebView> busy = new HashSet<>();
+
+    // Released web views which are still unloading the content
+    private final Set<WebView> unloading = new HashSet<>();
+
+    // Posts the eviction of idle web views
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Destroys all idle web views
+    private final Runnable evictor = this::evictAll;
+
+    // Max number of idle web views to keep
+    private int size = DEFAULT_SIZE;
+
+    // Time in milliseconds after which idle web views get destroyed
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT * 1000L;
+
+    // Counters reported by getStats
+    private int createCount;
+    private int reuseCount;
+    private int evictionCount;
+
+    // Time to the first layout of jobs with a pooled or a new web view
+    private int warmLayoutCount;
+    private long warmLayoutTime;
+    private int coldLayoutCount;
+    private long coldLayoutTime;
+
+    private PrintWebViewPool() {}
+
+    /**
+     * Returns the shared instance.
+     */
+    @NonNull
+    static synchronized PrintWebViewPool getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new PrintWebViewPool();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Sets the limits of the pool.
+     *
+     * @param size        Max number of idle web views to keep.
+     * @param idleTimeout Time in seconds after which idle web views get
+     *                    destroyed, 0 to keep them forever.
+     */
+    synchronized void configure (int size, int idleTimeout)
+    {
+        this.size        = Math.max(size, 0);
+        this.idleTimeout = Math.max(idleTimeout, 0) * 1000L;
+
+        trimToSize(this.size);
+    }
+
+    /**
+     * Creates web views until the pool is full.
+     *
+     * @param context The context for the web views.
+     */
+    synchronized void warmUp (@NonNull Context context)
+    {
+        while (idle.size() < size)
+        {
+            idle.push(createWebView(context));
+        }
+
+        scheduleEviction();
+    }
+
+    /**
+     * If there is an idle web view to reuse.
+     */
+    synchronized boolean hasIdle()
+    {
+        return !idle.isEmpty();
+    }
+
+    /**
+     * Takes an idle web view or creates a new one and applies the
+     * settings of the print job.
+     *
+     * @param context  The context for a new web view.
+     * @param settings Additional settings about the print job.
+     *
+     * @return A web view to load the content into.
+     */
+    @NonNull
+    synchronized WebView acquire (@NonNull Context context, @NonNull JSONObject settings)
+    {
+        WebView view = idle.poll();
+
+        if (view == null)
+        {
+            view = createWebView(context);
+        }
+        else
+        {
+            reuseCount++;
+        }
+
+        if (idle.isEmpty())
+        {
+            handler.removeCallbacks(evictor);
+        }
+
+        busy.add(view);
+        applySettings(view, settings);
+
+        return view;
+    }
+
+    /**
+     * Gives the web view back once its print job is done. The content
+     * gets unloaded and the view is kept for the next job if there is
+     * room left in the pool. The view becomes idle not before the blank
+     * page has been loaded, so that the next job doesn't take its
+     * pending load for its own content.
+     *
+     * @param view The web view to give back.
+     */
+    synchronized void release (@NonNull WebView view)
+    {
+        if (!busy.remove(view))
+            return;
+
+        view.stopLoading();
+
+        if (idle.size() + unloading.size() >= size)
+        {
+            view.setWebViewClient(null);
+            view.destroy();
+            return;
+        }
+
+        unloading.add(view);
+
+        view.setWebViewClient(new WebViewClient() {
+            @Override
+            public void onPageFinished (WebView view, String url) {
+                onUnloaded(view);
+            }
+        });
+
+        view.loadUrl("about:blank");
+    }
+
+    /**
+     * Records the time it took from the start of a job until the content
+     * has been loaded and laid out.
+     *
+     * @param warm   If the job has used a pooled web view.
+     * @param millis The elapsed time in milliseconds.
+     */
+    synchronized void recordFirstLayout (boolean warm, long millis)
+    {
+        if (warm)
+        {
+            warmLayoutCount++;
+            warmLayoutTime += millis;
+        }
+        else
+        {
+            coldLayoutCount++;
+            coldLayoutTime += millis;
+        }
+    }
+
+    /**
+     * Destroys all idle web views and the ones still unloading.
+     */
+    synchronized void evictAll()
+    {
+        for (WebView view : unloading)
+        {
+            view.destroy();
+            evictionCount++;
+        }
+
+        unloading.clear();
+        trimToSize(0);
+    }
+
+    /**
+     * Returns the counters of the pool and the average time to the first
+     * layout with and without a pooled web view.
+     */
+    @NonNull
+    synchronized JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+
+        try {
+            stats.put("created", createCount);
+            stats.put("reused", reuseCount);
+            stats.put("evictions", evictionCount);
+            stats.put("size", idle.size());
+            stats.put("maxSize", size);
+            stats.put("warmLayouts", warmLayoutCount);
+            stats.put("warmLayoutTime", warmLayoutCount > 0 ? warmLayoutTime / warmLayoutCount : 0);
+            stats.put("coldLayouts", coldLayoutCount);
+            stats.put("coldLayoutTime", coldLayoutCount > 0 ? coldLayoutTime / coldLayoutCount : 0);
+        } catch (JSONException e) {
+            // ignore
+        }
+
+        return stats;
+    }
+
+    /**
+     * Returns the time in milliseconds since boot, used to measure the time
+     * to the first layout.
+     */
+    static long now()
+    {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Makes the released web view idle once the blank page has been
+     * loaded.
+     *
+     * @param view The released web view.
+     */
+    private synchronized void onUnloaded (@NonNull WebView view)
+    {
+        if (!unloading.remove(view))
+            return;
+
+        view.setWebViewClient(null);
+        view.clearHistory();
+
+        idle.push(view);
+        scheduleEviction();
+    }
+
+    /**
+     * Destroys the least recently used idle web views.
+     *
+     * @param maxSize The number of idle web views to keep.
+     */
+    private synchronized void trimToSize (int maxSize)
+    {
+        while (idle.size() > maxSize)
+        {
+            idle.removeLast().destroy();
+            evictionCount++;
+        }
+
+        if (idle.isEmpty())
+        {
+            handler.removeCallbacks(evictor);
+        }
+    }
+
+    /**
+     * Restarts the countdown to destroy the idle web views.
+     */
+    private void scheduleEviction()
+    {
+        handler.removeCallbacks(evictor);
+
+        if (idleTimeout > 0 && !idle.isEmpty())
+        {
+            handler.postDelayed(evictor, idleTimeout);
+        }
+    }
+
+    /**
+     * Creates a new web view instance that can be used for printing.
+     *
+     * @param context The context for the web view.
+     *
+     * @return A web view instance.
+     */
+    @NonNull
+    private WebView createWebView (@NonNull Context context)
+    {
+        WebView     view = new WebView(context);
+        WebSettings spec = view.getSettings();
+
+        spec.setDatabaseEnabled(true);
+        spec.setGeolocationEnabled(true);
+        spec.setSaveFormData(true);
+        spec.setUseWideViewPort(true);
+
+        if (SDK_INT >= 21)
+        {
+            spec.setMixedContentMode(WebSettings.MIXED_CONTENT_ALWAYS_ALLOW);
+            CookieManager.getInstance().setAcceptThirdPartyCookies(view, true);
+        }
+
+        createCount++;
+
+        return view;
+    }
+
+    /**
+     * Applies the job specific settings and resets the ones of the job
+     * which has used the web view before.
+     *
+     * @param view     The web view to set up.
+     * @param settings Additional settings about the print job.
+     */
+    private void applySettings (@NonNull WebView view,
+                                @NonNull JSONObject settings)
+    {
+        boolean jsEnabled = settings.optBoolean("javascript", false);
+        WebSettings  spec = view.getSettings();
+        JSONObject   font = settings.optJSONObject("font");
+        int      fontSize = DEFAULT_FIXED_FONT_SIZE;
+
+        if (font != null && font.has("size"))
+        {
+            fontSize = font.optInt("size", 16);
+        }
+
+        spec.setJavaScriptEnabled(jsEnabled);
+        spec.setDefaultFixedFontSize(fontSize);
+    }
+}
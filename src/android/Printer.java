@@ -21,17 +21,22 @@
 
 package de.appplant.cordova.plugin.printer;
 
+import android.content.Context;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.webkit.WebView;
 
 import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaArgs;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.PluginResult;
 import org.apache.cordova.PluginResult.Status;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+
 /**
  * Plugin to print HTML documents. Therefore it creates an invisible web view
  * that loads the markup data. Once the page has been fully rendered it takes
@@ -39,6 +44,94 @@ import org.json.JSONObject;
  */
 public final class Printer extends CordovaPlugin
 {
+    // Provides the print methods, shared by all calls
+    private PrintManager manager;
+
+    // Runs the print jobs with limited concurrency
+    private PrintScheduler scheduler;
+
+    // Sends documents straight to network printers
+    private PrintRaw raw;
+
+    // Submits jobs to IPP printers without the print dialog
+    private PrintIpp ipp;
+
+    // The callback to push state changes of the print jobs to
+    private volatile CallbackContext jobStateCallback;
+
+    /**
+     * Sets up the print manager and the job scheduler, registers the
+     * caches for memory trim events, sets up the disk cache and the pool
+     * of web views, warming it up if configured so, looks up the ids of
+     * the configured resources and listens for state changes of the
+     * print jobs. Sets up raw printing with the configured printer and
+     * the IPP client.
+     */
+    @Override
+    protected void pluginInitialize()
+    {
+        PrintWebViewPool pool = PrintWebViewPool.getInstance();
+        int size              = preferences.getInteger("PrinterWebViewPoolSize", PrintWebViewPool.DEFAULT_SIZE);
+        int idleTimeout       = preferences.getInteger("PrinterWebViewIdleTimeout", PrintWebViewPool.DEFAULT_IDLE_TIMEOUT);
+        boolean warmUp        = preferences.getBoolean("PrinterWebViewWarmUp", false);
+        int cacheSize         = preferences.getInteger("PrinterPdfCacheSize", PrintPdfCache.DEFAULT_MAX_SIZE);
+        int cacheTTL          = preferences.getInteger("PrinterPdfCacheTTL", PrintPdfCache.DEFAULT_TTL);
+        File cacheDir         = new File(getAppContext().getCacheDir(), "printer-pdf");
+        String resources      = preferences.getString("PrinterPreloadResources", "");
+        String rawHost        = preferences.getString("PrinterRawHost", null);
+        int rawPort           = preferences.getInteger("PrinterRawPort", PrintRaw.DEFAULT_PORT);
+
+        manager   = new PrintManager(cordova.getContext(), cordova.getThreadPool());
+        scheduler = new PrintScheduler(cordova.getThreadPool(),
+                preferences.getInteger("PrinterQueueSize", PrintScheduler.DEFAULT_QUEUE_SIZE),
+                preferences.getInteger("PrinterRenderConcurrency", PrintScheduler.DEFAULT_RENDER_CONCURRENCY),
+                preferences.getInteger("PrinterSpoolConcurrency", PrintScheduler.DEFAULT_SPOOL_CONCURRENCY),
+                preferences.getInteger("PrinterRenderTimeout", PrintScheduler.DEFAULT_RENDER_TIMEOUT),
+                preferences.getInteger("PrinterSpoolTimeout", PrintScheduler.DEFAULT_SPOOL_TIMEOUT));
+        raw       = new PrintRaw(getAppContext(), manager, cordova.getThreadPool(), rawHost, rawPort);
+        ipp       = new PrintIpp(getAppContext(), manager, cordova.getThreadPool());
+
+        getAppContext().registerComponentCallbacks(PrintBitmapCache.getInstance());
+        PrintJobRegistry.getInstance().setListener(this::onJobStateChange);
+
+        cordova.getThreadPool().execute(() ->
+                PrintPdfCache.getInstance().configure(cacheDir, cacheSize, cacheTTL));
+
+        if (!resources.isEmpty())
+        {
+            cordova.getThreadPool().execute(() ->
+                    PrintContent.preloadResources(resources.split("\\s*,\\s*"), getAppContext()));
+        }
+
+        cordova.getActivity().runOnUiThread(() -> {
+            pool.configure(size, idleTimeout);
+
+            if (warmUp)
+            {
+                pool.warmUp(cordova.getActivity());
+            }
+        });
+    }
+
+    /**
+     * Unregisters the caches from memory trim events, destroys the
+     * pooled web views and connections and stops watching the print
+     * jobs.
+     */
+    @Override
+    public void onDestroy()
+    {
+        PrintJobRegistry registry = PrintJobRegistry.getInstance();
+
+        getAppContext().unregisterComponentCallbacks(PrintBitmapCache.getInstance());
+        PrintWebViewPool.getInstance().evictAll();
+        PrintSocketPool.getInstance().evictAll();
+
+        registry.setListener(null);
+        registry.stopObserving();
+        jobStateCallback = null;
+    }
+
     /**
      * Executes the request.
      *
@@ -71,7 +164,42 @@ public final class Printer extends CordovaPlugin
         }
         else if (action.equalsIgnoreCase("print"))
         {
-            print(args.optString(0), args.optJSONObject(1), callback);
+            withContent(args, callback, (String content) ->
+                    print(content, args.optJSONObject(1), callback));
+        }
+        else if (action.equalsIgnoreCase("printBatch"))
+        {
+            printBatch(args.optJSONArray(0), args.optJSONObject(1), callback);
+        }
+        else if (action.equalsIgnoreCase("registerTemplate"))
+        {
+            registerTemplate(args.optString(0), args.optString(1), callback);
+        }
+        else if (action.equalsIgnoreCase("printTemplate"))
+        {
+            printTemplate(args.optString(0), args.optJSONObject(1), args.optJSONObject(2), callback);
+        }
+        else if (action.equalsIgnoreCase("printRaw"))
+        {
+            withContent(args, callback, (String content) ->
+                    printRaw(content, args.optJSONObject(1), callback));
+        }
+        else if (action.equalsIgnoreCase("render"))
+        {
+            withContent(args, callback, (String content) ->
+                    render(content, args.optJSONObject(1), callback));
+        }
+        else if (action.equalsIgnoreCase("stats"))
+        {
+            stats(callback);
+        }
+        else if (action.equalsIgnoreCase("jobs"))
+        {
+            jobs(callback);
+        }
+        else if (action.equalsIgnoreCase("observe"))
+        {
+            observe(callback);
         }
         else {
             valid = false;
@@ -89,8 +217,7 @@ public final class Printer extends CordovaPlugin
     private void check (@Nullable String item, CallbackContext callback)
     {
         cordova.getThreadPool().execute(() -> {
-            PrintManager pm   = new PrintManager(cordova.getContext());
-            boolean printable = pm.canPrintItem(item);
+            boolean printable = manager.canPrintItem(item);
 
             sendPluginResult(callback, printable);
         });
@@ -113,9 +240,93 @@ public final class Printer extends CordovaPlugin
         });
     }
 
+    /**
+     * Metrics of the caches like hit and miss counters.
+     *
+     * @param callback The plugin function to invoke with the result.
+     */
+    private void stats (CallbackContext callback)
+    {
+        JSONObject stats = PrintManager.getStats();
+
+        try {
+            stats.put("scheduler", scheduler.getStats());
+            stats.put("raw", raw.getStats());
+            stats.put("ipp", ipp.getStats());
+        } catch (JSONException e) {
+            // ignore
+        }
+
+        PluginResult res = new PluginResult(
+                Status.OK, stats);
+
+        callback.sendPluginResult(res);
+    }
+
+    /**
+     * The jobs handed over to the print service with their current state
+     * and the recorded state transitions.
+     *
+     * @param callback The plugin function to invoke with the result.
+     */
+    private void jobs (CallbackContext callback)
+    {
+        PluginResult res = new PluginResult(
+                Status.OK, PrintJobRegistry.getInstance().getJobs());
+
+        callback.sendPluginResult(res);
+    }
+
+    /**
+     * Keeps the callback alive to push the state changes of the print
+     * jobs to. Replaces the previously registered callback.
+     *
+     * @param callback The plugin function to invoke with each change.
+     */
+    private void observe (CallbackContext callback)
+    {
+        PluginResult res = new PluginResult(Status.NO_RESULT);
+        res.setKeepCallback(true);
+
+        jobStateCallback = callback;
+        callback.sendPluginResult(res);
+    }
+
+    /**
+     * Pushes the state change of the print job to the registered callback.
+     *
+     * @param entry The entry of the print job.
+     * @param state The new state.
+     */
+    private void onJobStateChange (@NonNull PrintJobRegistry.Entry entry,
+                                   int state)
+    {
+        CallbackContext callback = jobStateCallback;
+        JSONObject event         = new JSONObject();
+
+        if (callback == null)
+            return;
+
+        try {
+            event.put("id", entry.id);
+            event.put("name", entry.name);
+            event.put("state", PrintJobRegistry.getStateName(state));
+            event.put("time", System.currentTimeMillis());
+        } catch (JSONException e) {
+            // ignore
+        }
+
+        PluginResult res = new PluginResult(Status.OK, event);
+        res.setKeepCallback(true);
+
+        callback.sendPluginResult(res);
+    }
+
     /**
      * Sends the provided content to the printing controller and opens
-     * them.
+     * them. The job gets queued by the scheduler, or rejected with an
+     * error if the queue is full. Jobs for an ipp:// or ipps:// printer
+     * get submitted to it directly without the print dialog.
      *
      * @param content  The content or file to print.
      * @param settings Additional settings how to render the content.
@@ -124,14 +335,218 @@ public final class Printer extends CordovaPlugin
     private void print (@Nullable String content, JSONObject settings,
                         CallbackContext callback)
     {
+        PrintTask task = new PrintTask((PrintTask job) -> {
+            WebView view = (WebView) webView.getView();
+
+            if (PrintIpp.isPrinterUri(settings.optString("printer"))) {
+                ipp.print(content, settings, view, job);
+            } else {
+                manager.print(content, settings, view, job);
+            }
+        }, (boolean completed) -> {
+            PrintBytes.release(content);
+            sendPluginResult(callback, completed);
+        });
+
+        if (!scheduler.submit(task))
+        {
+            PrintBytes.release(content);
+            callback.error("Print queue is full");
+        }
+    }
+
+    /**
+     * Compiles the markup and registers it under the name, to be printed
+     * later on by printTemplate.
+     *
+     * @param name     The name of the template.
+     * @param markup   The markup with the placeholders.
+     * @param callback The plugin function to invoke with the result.
+     */
+    private void registerTemplate (@NonNull String name, @NonNull String markup,
+                                   CallbackContext callback)
+    {
+        cordova.getThreadPool().execute(() -> {
+            try {
+                PrintTemplate.register(name, markup);
+                sendPluginResult(callback, true);
+            } catch (IllegalArgumentException e) {
+                callback.error(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Fills the registered template with the data and prints the markup
+     * like the print action does.
+     *
+     * @param name     The name of the template.
+     * @param data     The values to insert.
+     * @param settings Additional settings how to render the content.
+     * @param callback The plugin function to invoke with the result.
+     */
+    private void printTemplate (@NonNull String name, @Nullable JSONObject data,
+                                @Nullable JSONObject settings,
+                                CallbackContext callback)
+    {
+        PrintTemplate template = PrintTemplate.get(name);
+        JSONObject spec        = settings != null ? settings : new JSONObject();
+
+        if (template == null)
+        {
+            callback.error("Unknown template " + name);
+            return;
+        }
+
+        PrintTask task = new PrintTask((PrintTask job) ->
+                manager.printTemplate(template, data, spec, job),
+                (boolean completed) -> sendPluginResult(callback, completed));
+
+        if (!scheduler.submit(task))
+        {
+            callback.error("Print queue is full");
+        }
+    }
+
+    /**
+     * Prints many documents with one call. The result of each item gets
+     * sent back as soon as its job is done, the callback is kept alive
+     * until the last one.
+     *
+     * @param items    List of contents or objects with content and settings.
+     * @param settings The settings shared by all items.
+     * @param callback The plugin function to invoke with the results.
+     */
+    private void printBatch (@Nullable JSONArray items, @Nullable JSONObject settings,
+                             CallbackContext callback)
+    {
+        if (items == null || items.length() == 0)
+        {
+            callback.error("No items to print");
+            return;
+        }
+
+        cordova.getThreadPool().execute(() -> {
+            WebView view = (WebView) webView.getView();
+
+            PrintBatch batch = new PrintBatch(cordova.getContext(), manager, scheduler, cordova.getThreadPool(), view,
+                    (int index, boolean completed, String error, boolean last) -> {
+                        JSONObject result = new JSONObject();
+
+                        try {
+                            result.put("index", index);
+                            result.put("completed", completed);
+                            result.put("done", last);
+                            result.putOpt("error", error);
+                        } catch (JSONException e) {
+                            // ignore
+                        }
+
+                        PluginResult res = new PluginResult(Status.OK, result);
+                        res.setKeepCallback(!last);
+
+                        callback.sendPluginResult(res);
+                    });
+
+            batch.print(items, settings != null ? settings : new JSONObject());
+        });
+    }
+
+    /**
+     * Sends the provided content straight to the network printer given by
+     * the settings or preferences, without the print dialog.
+     *
+     * @param content  The content or file to print.
+     * @param settings The printer and how to render the content.
+     * @param callback The plugin function to invoke with the result.
+     */
+    private void printRaw (@Nullable String content, @Nullable JSONObject settings,
+                           CallbackContext callback)
+    {
+        cordova.getThreadPool().execute(() -> {
+            WebView view = (WebView) webView.getView();
+
+            raw.print(content, settings != null ? settings : new JSONObject(), view, (boolean sent, String error) -> {
+                PrintBytes.release(content);
+
+                if (sent) {
+                    sendPluginResult(callback, true);
+                } else {
+                    callback.error(error);
+                }
+            });
+        });
+    }
+
+    /**
+     * Renders the provided content into a PDF file without the print
+     * dialog. The callback receives the file:/// uri of the document.
+     *
+     * @param content  The content or file to render.
+     * @param settings Additional settings how to render the content.
+     * @param callback The plugin function to invoke with the result.
+     */
+    private void render (@Nullable String content, JSONObject settings,
+                         CallbackContext callback)
+    {
+        cordova.getThreadPool().execute(() -> {
+            WebView view = (WebView) webView.getView();
+
+            manager.render(content, settings, view, (File file, String error) -> {
+                PrintBytes.release(content);
+
+                if (file != null) {
+                    callback.success("file://" + file.getAbsolutePath());
+                } else {
+                    callback.error(error);
+                }
+            });
+        });
+    }
+
+    /**
+     * Passes the content of the call to the function. Content sent as
+     * ArrayBuffer gets decoded off the bridge thread and kept in memory
+     * under a buffer:// Uri, which the job has to release once done.
+     *
+     * @param args     The exec() arguments with the content first and the
+     *                 flag if its binary third.
+     * @param callback The plugin function to invoke if the content is
+     *                 invalid.
+     * @param fn       The function to invoke with the content.
+     */
+    private void withContent (JSONArray args, CallbackContext callback,
+                              @NonNull ContentCallback fn)
+    {
+        if (!args.optBoolean(2))
+        {
+            fn.run(args.optString(0));
+            return;
+        }
+
         cordova.getThreadPool().execute(() -> {
-            PrintManager pm = new PrintManager(cordova.getContext());
-            WebView view    = (WebView) webView.getView();
+            byte[] bytes;
+
+            try {
+                bytes = new CordovaArgs(args).getArrayBuffer(0);
+            } catch (JSONException e) {
+                callback.error("Invalid content");
+                return;
+            }
 
-            pm.print(content, settings, view, (boolean completed) -> sendPluginResult(callback, completed));
+            fn.run(PrintBytes.put(bytes));
         });
     }
 
+    /**
+     * Returns the application context.
+     */
+    @NonNull
+    private Context getAppContext()
+    {
+        return cordova.getContext().getApplicationContext();
+    }
+
     /**
      * Sends the result back to the client.
      *
@@ -145,4 +560,9 @@ public final class Printer extends CordovaPlugin
 
         callback.sendPluginResult(result);
     }
+
+    private interface ContentCallback
+    {
+        void run (@NonNull String content);
+    }
 }
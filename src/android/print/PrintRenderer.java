@@ -0,0 +1,206 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package android.print;
+
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Drives a print document adapter without the print spooler to write
+ * the whole document into a PDF file. Lives within the android.print
+ * package as the result callbacks can't be created from outside.
+ */
+public final class PrintRenderer
+{
+    // The adapter which provides the content
+    private final @NonNull PrintDocumentAdapter adapter;
+
+    // The attributes to lay out the content for
+    private final @NonNull PrintAttributes attributes;
+
+    // The file to write the document into
+    private final @NonNull File file;
+
+    // The callback to inform once the document has been written
+    private final @NonNull OnRenderFinishCallback callback;
+
+    // To abort the rendering
+    private final @NonNull CancellationSignal signal = new CancellationSignal();
+
+    /**
+     * Constructor
+     *
+     * @param adapter    The adapter which provides the content.
+     * @param attributes The attributes to lay out the content for.
+     * @param file       The file to write the document into.
+     * @param callback   The callback to inform once the document has
+     *                   been written.
+     */
+    private PrintRenderer (@NonNull PrintDocumentAdapter adapter,
+                           @NonNull PrintAttributes attributes,
+                           @NonNull File file,
+                           @NonNull OnRenderFinishCallback callback)
+    {
+        this.adapter    = adapter;
+        this.attributes = attributes;
+        this.file       = file;
+        this.callback   = callback;
+    }
+
+    /**
+     * Lays out the content of the adapter and writes all its pages into
+     * the file. Has to be called on the thread the adapter expects its
+     * calls on, which is the UI thread for web views.
+     *
+     * @param adapter    The adapter which provides the content.
+     * @param attributes The attributes to lay out the content for, need
+     *                   to have a media size, resolution and margins.
+     * @param file       The file to write the document into.
+     * @param callback   The callback to inform once the document has
+     *                   been written.
+     *
+     * @return A signal to cancel the rendering.
+     */
+    @NonNull
+    public static CancellationSignal render (@NonNull PrintDocumentAdapter adapter,
+                                             @NonNull PrintAttributes attributes,
+                                             @NonNull File file,
+                                             @NonNull OnRenderFinishCallback callback)
+    {
+        PrintRenderer renderer = new PrintRenderer(adapter, attributes, file, callback);
+
+        renderer.layout();
+
+        return renderer.signal;
+    }
+
+    /**
+     * Starts the adapter and lays out the content.
+     */
+    private void layout()
+    {
+        adapter.onStart();
+
+        adapter.onLayout(null, attributes, signal, new PrintDocumentAdapter.LayoutResultCallback() {
+            @Override
+            public void onLayoutFinished (PrintDocumentInfo info, boolean changed) {
+                write();
+            }
+
+            @Override
+            public void onLayoutFailed (CharSequence error) {
+                finish(String.valueOf(error));
+            }
+
+            @Override
+            public void onLayoutCancelled() {
+                finish("Rendering has been canceled");
+            }
+        }, new Bundle());
+    }
+
+    /**
+     * Writes all pages into the file.
+     */
+    private void write()
+    {
+        ParcelFileDescriptor fd;
+
+        try {
+            fd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_CREATE
+                    | ParcelFileDescriptor.MODE_TRUNCATE | ParcelFileDescriptor.MODE_READ_WRITE);
+        } catch (IOException e) {
+            finish(e.getMessage());
+            return;
+        }
+
+        adapter.onWrite(new PageRange[]{ PageRange.ALL_PAGES }, fd, signal, new PrintDocumentAdapter.WriteResultCallback() {
+            @Override
+            public void onWriteFinished (PageRange[] pages) {
+                close(fd);
+                finish(null);
+            }
+
+            @Override
+            public void onWriteFailed (CharSequence error) {
+                close(fd);
+                finish(String.valueOf(error));
+            }
+
+            @Override
+            public void onWriteCancelled() {
+                close(fd);
+                finish("Rendering has been canceled");
+            }
+        });
+    }
+
+    /**
+     * Finishes the adapter and invokes the callback. The file gets
+     * deleted if the rendering has failed.
+     *
+     * @param error The reason why the rendering failed or null.
+     */
+    private void finish (@Nullable String error)
+    {
+        adapter.onFinish();
+
+        if (error != null)
+        {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+
+        callback.onFinish(error == null ? file : null, error);
+    }
+
+    /**
+     * Closes the file descriptor.
+     *
+     * @param fd The descriptor to close.
+     */
+    private static void close (@NonNull ParcelFileDescriptor fd)
+    {
+        try {
+            fd.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    public interface OnRenderFinishCallback
+    {
+        /**
+         * Invoked once the rendering is done.
+         *
+         * @param file  The written file or null if the rendering failed.
+         * @param error The reason why the rendering failed or null.
+         */
+        void onFinish (@Nullable File file, @Nullable String error);
+    }
+}
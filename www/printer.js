@@ -19,9 +19,11 @@
  under the License.
  */
 
-var exec  = require('cordova/exec'),
-    ua    = navigator.userAgent.toLowerCase(),
-    isIOS = ua.indexOf('ipad') > -1 || ua.indexOf('iphone') > -1;
+var exec      = require('cordova/exec'),
+    base64    = require('cordova/base64'),
+    ua        = navigator.userAgent.toLowerCase(),
+    isIOS     = ua.indexOf('ipad') > -1 || ua.indexOf('iphone') > -1,
+    isAndroid = ua.indexOf('android') > -1;
 
 // Defaults
 exports._defaults = {
@@ -34,6 +36,8 @@ exports._defaults = {
 
     // copies: 1,
     // pageCount: 1,
+    // dpi: 300,
+    // cache: false,
 
     // maxHeight: '10cm',
     // maxWidth: '10cm',
@@ -170,10 +174,76 @@ exports.pick = function (options, callback, scope)
     }
 };
 
+/**
+ * Returns metrics like hit and miss counters of the native caches.
+ *
+ * @param [ Function ] callback The callback function.
+ * @param [ Object ]   scope    The scope for the function.
+ *
+ * @return [ Void ]
+ */
+exports.getStats = function (callback, scope)
+{
+    var fn = this._createCallbackFn(callback, scope);
+
+    if (isAndroid)
+    {
+        exec(fn, null, 'Printer', 'stats', []);
+    }
+    else if (fn)
+    {
+        fn({});
+    }
+};
+
+/**
+ * Returns the jobs handed over to the print service with their current
+ * state and the recorded state transitions.
+ *
+ * @param [ Function ] callback The callback function.
+ * @param [ Object ]   scope    The scope for the function.
+ *
+ * @return [ Void ]
+ */
+exports.getJobs = function (callback, scope)
+{
+    var fn = this._createCallbackFn(callback, scope);
+
+    if (isAndroid)
+    {
+        exec(fn, null, 'Printer', 'jobs', []);
+    }
+    else if (fn)
+    {
+        fn([]);
+    }
+};
+
+/**
+ * Registers the callback to invoke whenever a print job changes its state,
+ * e.g. from queued to started and completed. Replaces the previously
+ * registered callback.
+ *
+ * @param [ Function ] callback The callback function.
+ * @param [ Object ]   scope    The scope for the function.
+ *
+ * @return [ Void ]
+ */
+exports.onJobStateChange = function (callback, scope)
+{
+    var fn = this._createCallbackFn(callback, scope);
+
+    if (isAndroid && fn)
+    {
+        exec(fn, null, 'Printer', 'observe', []);
+    }
+};
+
 /**
  * Sends the content to the printer.
  *
- * @param [ String ]   content  The plain/html text or a file URI.
+ * @param [ String ]   content  The plain/html text, a file URI or
+ *                              an ArrayBuffer with binary data.
  * @param [ Object ]   options  Options for the print job.
  * @param [ Function ] callback The callback function.
  * @param [ Object ]   scope    The scope for the function.
@@ -192,14 +262,190 @@ exports.print = function (content, options, callback, scope)
     {
         scope    = callback;
         callback = options;
-        options  = typeof content != 'string' ? content : {};
-        content  = typeof content == 'string' ? content : null;
+        options  = this._isContent(content) ? {} : content;
+        content  = this._isContent(content) ? content : null;
+    }
+
+    var fn     = this._createCallbackFn(callback, scope),
+        params = this._mergeWithDefaults(options || {});
+
+    exec(fn, function (error) {
+        if (fn) fn(false, error);
+    }, 'Printer', 'print', this._toArgs(content, params));
+};
+
+/**
+ * Registers the markup as template under the name. Replaces the
+ * template previously registered under that name.
+ *
+ * @param [ String ]   name     The name of the template.
+ * @param [ String ]   markup   The markup with the placeholders.
+ * @param [ Function ] callback The callback function.
+ * @param [ Object ]   scope    The scope for the function.
+ */
+exports.registerTemplate = function (name, markup, callback, scope)
+{
+    var fn = this._createCallbackFn(callback, scope);
+
+    if (!isAndroid)
+    {
+        if (fn) fn(false, 'Not supported');
+        return;
+    }
+
+    exec(fn, function (error) {
+        if (fn) fn(false, error);
+    }, 'Printer', 'registerTemplate', [name, markup]);
+};
+
+/**
+ * Fills the registered template with the data and sends the
+ * markup to the printer.
+ *
+ * @param [ String ]   name     The name of the template.
+ * @param [ Object ]   data     The values to insert.
+ * @param [ Object ]   options  Options for the print job.
+ * @param [ Function ] callback The callback function.
+ * @param [ Object ]   scope    The scope for the function.
+ */
+exports.printTemplate = function (name, data, options, callback, scope)
+{
+    if (typeof options == 'function')
+    {
+        scope    = callback;
+        callback = options;
+        options  = {};
+    }
+
+    var fn     = this._createCallbackFn(callback, scope),
+        params = this._mergeWithDefaults(options || {});
+
+    if (!isAndroid)
+    {
+        if (fn) fn(false, 'Not supported');
+        return;
+    }
+
+    exec(fn, function (error) {
+        if (fn) fn(false, error);
+    }, 'Printer', 'printTemplate', [name, data || {}, params]);
+};
+
+/**
+ * Sends many documents to the printer with one call. Items with the
+ * same settings get merged into as few print jobs as possible.
+ * The callback gets invoked for each item with its result, the last
+ * result has the done flag set.
+ *
+ * @param [ Array ]    items    List of contents or objects with
+ *                              content and settings.
+ * @param [ Object ]   options  Options shared by all items.
+ * @param [ Function ] callback The callback function.
+ * @param [ Object ]   scope    The scope for the function.
+ */
+exports.printBatch = function (items, options, callback, scope)
+{
+    if (typeof options == 'function')
+    {
+        scope    = callback;
+        callback = options;
+        options  = {};
     }
 
     var fn     = this._createCallbackFn(callback, scope),
         params = this._mergeWithDefaults(options || {});
 
-    exec(fn, null, 'Printer', 'print', [content || '', params]);
+    if (!isAndroid)
+    {
+        var me = this, results = [], index = 0;
+
+        var next = function () {
+            if (index >= items.length) return;
+
+            var item = items[index], i = index++;
+
+            me.print(item.content || item, Object.assign({}, options, item.settings), function (completed) {
+                if (fn) fn({ index: i, completed: completed, done: index >= items.length });
+                next();
+            });
+        };
+
+        next();
+        return;
+    }
+
+    exec(fn, function (error) {
+        if (fn) fn({ index: -1, completed: false, done: true, error: error });
+    }, 'Printer', 'printBatch', [items, params]);
+};
+
+/**
+ * Sends the content straight to a network printer which accepts raw
+ * data on a TCP port, without the print dialog. The callback receives
+ * true once the content has been sent, or false and the reason.
+ *
+ * @param [ String ]   content  The plain/html text, a file URI or
+ *                              an ArrayBuffer with binary data.
+ * @param [ Object ]   options  The printer host and port and how to
+ *                              render the content.
+ * @param [ Function ] callback The callback function.
+ * @param [ Object ]   scope    The scope for the function.
+ */
+exports.printRaw = function (content, options, callback, scope)
+{
+    if (typeof options == 'function')
+    {
+        scope    = callback;
+        callback = options;
+        options  = {};
+    }
+
+    var fn     = this._createCallbackFn(callback, scope),
+        params = this._mergeWithDefaults(options || {});
+
+    if (!isAndroid)
+    {
+        if (fn) fn(false, 'Not supported');
+        return;
+    }
+
+    exec(fn, function (error) {
+        if (fn) fn(false, error);
+    }, 'Printer', 'printRaw', this._toArgs(content, params));
+};
+
+/**
+ * Renders the content into a PDF file without the print dialog.
+ * The callback receives the file URI of the document, or null
+ * and the reason if the rendering has failed.
+ *
+ * @param [ String ]   content  The plain/html text, a file URI or
+ *                              an ArrayBuffer with binary data.
+ * @param [ Object ]   options  Options how to render the content.
+ * @param [ Function ] callback The callback function.
+ * @param [ Object ]   scope    The scope for the function.
+ */
+exports.toPdf = function (content, options, callback, scope)
+{
+    if (typeof options == 'function')
+    {
+        scope    = callback;
+        callback = options;
+        options  = {};
+    }
+
+    var fn     = this._createCallbackFn(callback, scope),
+        params = this._mergeWithDefaults(options || {});
+
+    if (!isAndroid)
+    {
+        if (fn) fn(null, 'Not supported');
+        return;
+    }
+
+    exec(fn, function (error) {
+        if (fn) fn(null, error);
+    }, 'Printer', 'render', this._toArgs(content, params));
 };
 
 /**
@@ -271,6 +517,49 @@ exports._mergeWithDefaults = function (options)
     return options;
 };
 
+/**
+ * @private
+ *
+ * If the value is content to print, either text, a file URI or binary
+ * data like an ArrayBuffer or typed array.
+ *
+ * @param [ Object ] content The value to check.
+ *
+ * @return [ Boolean ]
+ */
+exports._isContent = function (content)
+{
+    return typeof content == 'string' || content instanceof ArrayBuffer || ArrayBuffer.isView(content);
+};
+
+/**
+ * @private
+ *
+ * The exec() arguments for the content and the options. Binary data
+ * gets passed as ArrayBuffer on Android and as base64:// URI on other
+ * platforms.
+ *
+ * @param [ Object ] content The text, file URI or binary data.
+ * @param [ Object ] params  The options.
+ *
+ * @return [ Array ]
+ */
+exports._toArgs = function (content, params)
+{
+    if (!(content instanceof ArrayBuffer || ArrayBuffer.isView(content)))
+        return [content || '', params];
+
+    if (ArrayBuffer.isView(content))
+    {
+        content = content.buffer.slice(content.byteOffset, content.byteOffset + content.byteLength);
+    }
+
+    if (isAndroid)
+        return [content, params, true];
+
+    return ['base64://' + base64.fromArrayBuffer(content), params];
+};
+
 /**
  * @private
  *